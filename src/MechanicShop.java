@@ -15,12 +15,34 @@ import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
 import java.sql.ResultSet;
+import java.sql.PreparedStatement;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Types;
+import org.postgresql.PGConnection;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Scanner;
@@ -39,41 +61,123 @@ import java.text.SimpleDateFormat;
 public class MechanicShop {
 	// reference to physical database connection
 	private Connection _connection = null;
+	private final String _url;
+	private final String _user;
+	private final String _passwd;
+	// intake captured while offline, opened on first use
+	private IntakeJournal _journal = null;
+	private final String _journalFile;
+	static final String JOURNAL_FILE = "intake.journal";
+	static final int REPLAY_BATCH = 1000;
+	// rows the driver holds at once while filling a ResultTable
+	static final int FETCH_SIZE = 1000;
+	// key sequences that keep counting after old rows are archived
+	static final String RID_SEQUENCE = "service_request_rid_seq";
+	static final String WID_SEQUENCE = "closed_request_wid_seq";
+	private boolean _keysReady = false;
+	// closed service history exported out of the hot tables
+	private final ServiceArchive _archive;
+	static final String ARCHIVE_DIR = "archive";
+	// open service requests and their mechanic assignments
+	final ServiceBacklog _backlog = new ServiceBacklog();
+	// highest keys loadBacklog has read, so later refreshes only read what is new
+	private boolean _backlogLoaded = false;
+	private int _backlogMechanic = -1;
+	private int _backlogRid = -1;
+	private int _backlogWid = -1;
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 
 	public MechanicShop(String dbname, String dbport, String user, String passwd) throws SQLException {
+		this(dbname, dbport, user, passwd, null);
+	}
+
+	/**
+	 * @param location shop name used to keep this shop's journal and archive
+	 *                 apart from the others in a chain, or null for a single shop
+	 */
+	public MechanicShop(String dbname, String dbport, String user, String passwd, String location) throws SQLException {
+		this._journalFile = location == null ? JOURNAL_FILE : "intake." + location + ".journal";
+		this._archive = new ServiceArchive(location == null ? new File(ARCHIVE_DIR) : new File(ARCHIVE_DIR, location));
 		System.out.print("Connecting to database...");
-		try {
-			// constructs the connection URL
-			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-			System.out.println("Connection URL: " + url + "\n");
+		// constructs the connection URL
+		this._url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+		this._user = user;
+		this._passwd = passwd;
+		System.out.println("Connection URL: " + _url + "\n");
+		if (reconnect()) {
+			System.out.println("Done");
+		} else {
+			System.out.println("Make sure you started postgres on this machine");
+			System.out.println("Continuing offline: intake operations are saved to " + _journalFile);
+		}
+	}
 
+	/**
+	 * Method to (re)open the physical connection.
+	 *
+	 * @return true when connected
+	 */
+	public boolean reconnect() {
+		try {
 			// obtain a physical connection
-			this._connection = DriverManager.getConnection(url, user, passwd);
-			System.out.println("Done");
+			this._connection = DriverManager.getConnection(_url, _user, _passwd);
+			return true;
 		} catch (Exception e) {
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
-			System.out.println("Make sure you started postgres on this machine");
-			System.exit(-1);
+			this._connection = null;
+			return false;
 		}
 	}
 
+	public boolean isOffline() {
+		return this._connection == null;
+	}
+
+	/**
+	 * Method to prepare the session once connected: prepares the key sequences,
+	 * replays any offline journal left by an earlier run, then creates indexes
+	 * and seeds the backlog.
+	 */
+	public void startSession() throws SQLException, IOException {
+		prepareKeys();
+		if (this._journal != null || new File(_journalFile).exists())
+			replayJournal();
+		prepareIndexes();
+		loadBacklog();
+		this._backlog.dispatch();
+	}
+
+	public IntakeJournal journal() throws IOException {
+		if (this._journal == null)
+			this._journal = IntakeJournal.open(new File(_journalFile));
+		return this._journal;
+	}
+
+	// creates a statement, failing cleanly while offline
+	private Statement createStatement() throws SQLException {
+		if (this._connection == null)
+			throw new SQLException("Not connected to the database (offline mode)");
+		return this._connection.createStatement();
+	}
+
 	/**
 	 * Method to execute an update SQL statement. Update SQL instructions includes
 	 * CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 * 
 	 * @param sql the input SQL string
+	 * @return the number of rows changed
 	 * @throws java.sql.SQLException when update failed
 	 */
-	public void executeUpdate(String sql) throws SQLException {
+	public int executeUpdate(String sql) throws SQLException {
 		// creates a statement object
-		Statement stmt = this._connection.createStatement();
+		Statement stmt = createStatement();
 
 		// issues the update instruction
-		stmt.executeUpdate(sql);
+		int rows = stmt.executeUpdate(sql);
 
 		// close the instruction
 		stmt.close();
+		return rows;
 	}// end executeUpdate
 
 	/**
@@ -86,7 +190,7 @@ public class MechanicShop {
 	 */
 	public int executeQueryAndPrintResult(String query) throws SQLException {
 		// creates a statement object
-		Statement stmt = this._connection.createStatement();
+		Statement stmt = createStatement();
 
 		// issues the query instruction
 		ResultSet rs = stmt.executeQuery(query);
@@ -121,7 +225,9 @@ public class MechanicShop {
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT). This method
 	 * issues the query to the DBMS and returns the results as a list of records.
-	 * Each record in turn is a list of attribute values
+	 * Each record in turn is a list of attribute values. The records are a
+	 * read-only view over a column store (see ResultTable), so repeated values
+	 * and integer columns do not cost one String per cell.
 	 * 
 	 * @param query the input query string
 	 * @return the query result as a list of records
@@ -129,31 +235,217 @@ public class MechanicShop {
 	 */
 	public List<List<String>> executeQueryAndReturnResult(String query) throws SQLException {
 		// creates a statement object
-		Statement stmt = this._connection.createStatement();
+		Statement stmt = createStatement();
 
-		// issues the query instruction
-		ResultSet rs = stmt.executeQuery(query);
+		/*
+		 * the driver only streams rows through a cursor inside a transaction;
+		 * otherwise it buffers the whole result before the first row is read.
+		 */
+		boolean autoCommit = this._connection.getAutoCommit();
+		if (autoCommit)
+			this._connection.setAutoCommit(false);
+		try {
+			stmt.setFetchSize(FETCH_SIZE);
+			ResultTable result = readResult(stmt.executeQuery(query));
+			if (autoCommit)
+				this._connection.commit();
+			return result;
+		} catch (SQLException e) {
+			if (autoCommit)
+				this._connection.rollback();
+			throw e;
+		} finally {
+			stmt.close();
+			if (autoCommit)
+				this._connection.setAutoCommit(true);
+		}
+	}// end executeQueryAndReturnResult
 
+	// copies a result set into a ResultTable, FETCH_SIZE rows at a time
+	private static ResultTable readResult(ResultSet rs) throws SQLException {
 		/*
 		 * obtains the metadata object for the returned result set. The metadata
 		 * contains row and column info.
 		 */
 		ResultSetMetaData rsmd = rs.getMetaData();
 		int numCol = rsmd.getColumnCount();
-		int rowCount = 0;
+
+		// picks int storage for integer columns, dictionary encoding for the rest
+		boolean[] intColumn = new boolean[numCol];
+		for (int i = 1; i <= numCol; ++i) {
+			int type = rsmd.getColumnType(i);
+			intColumn[i - 1] = type == Types.INTEGER || type == Types.SMALLINT || type == Types.TINYINT;
+		}
 
 		// iterates through the result set and saves the data returned by the query.
-		boolean outputHeader = false;
-		List<List<String>> result = new ArrayList<List<String>>();
+		ResultTable result = new ResultTable(intColumn);
 		while (rs.next()) {
-			List<String> record = new ArrayList<String>();
-			for (int i = 1; i <= numCol; ++i)
-				record.add(rs.getString(i));
-			result.add(record);
+			for (int i = 1; i <= numCol; ++i) {
+				if (intColumn[i - 1]) {
+					int v = rs.getInt(i);
+					result.addInt(i - 1, v, rs.wasNull());
+				} else {
+					result.addString(i - 1, rs.getString(i));
+				}
+			}
+			result.endRow();
 		} // end while
-		stmt.close();
+		result.seal();
 		return result;
-	}// end executeQueryAndReturnResult
+	}
+
+	/**
+	 * Column-oriented query result exposed as a read-only List of records.
+	 * Integer columns are kept in an int[] with a null mask; all other columns
+	 * are dictionary encoded, so a value such as a car make is stored once and
+	 * each row only holds its code. A column whose dictionary keeps growing with
+	 * the row count (names, comments) switches to plain String storage. Once
+	 * filled the table is sealed: the lookup maps used while encoding are dropped
+	 * and the columns are trimmed to the row count.
+	 */
+	static class ResultTable extends AbstractList<List<String>> {
+		// dictionaries larger than this are dropped when most values are distinct
+		private static final int MAX_DICTIONARY = 4096;
+
+		private final int numCol;
+		private final boolean[] intColumn;
+		private final int[][] ints;
+		private final boolean[][] nulls;
+		private final int[][] codes;
+		private final String[][] strings;
+		// value to code, only needed while rows are added
+		private List<Map<String, Integer>> dictionaries;
+		private final List<List<String>> values;
+		private int size = 0;
+		private int capacity = 16;
+
+		ResultTable(boolean[] intColumn) {
+			this.numCol = intColumn.length;
+			this.intColumn = intColumn;
+			this.ints = new int[numCol][];
+			this.nulls = new boolean[numCol][];
+			this.codes = new int[numCol][];
+			this.strings = new String[numCol][];
+			this.dictionaries = new ArrayList<Map<String, Integer>>(numCol);
+			this.values = new ArrayList<List<String>>(numCol);
+			for (int c = 0; c < numCol; ++c) {
+				if (intColumn[c]) {
+					ints[c] = new int[capacity];
+					nulls[c] = new boolean[capacity];
+					dictionaries.add(null);
+					values.add(null);
+				} else {
+					codes[c] = new int[capacity];
+					dictionaries.add(new HashMap<String, Integer>());
+					values.add(new ArrayList<String>());
+				}
+			}
+		}
+
+		void addInt(int col, int v, boolean isNull) {
+			ints[col][size] = v;
+			nulls[col][size] = isNull;
+		}
+
+		void addString(int col, String v) {
+			if (strings[col] != null) {
+				strings[col][size] = v;
+				return;
+			}
+			Map<String, Integer> dictionary = dictionaries.get(col);
+			Integer code = dictionary.get(v);
+			if (code == null) {
+				code = values.get(col).size();
+				dictionary.put(v, code);
+				values.get(col).add(v);
+				if (dictionary.size() > MAX_DICTIONARY && dictionary.size() > size / 2) {
+					decode(col);
+					strings[col][size] = v;
+					return;
+				}
+			}
+			codes[col][size] = code;
+		}
+
+		void endRow() {
+			if (++size < capacity)
+				return;
+			capacity *= 2;
+			for (int c = 0; c < numCol; ++c) {
+				if (intColumn[c]) {
+					ints[c] = Arrays.copyOf(ints[c], capacity);
+					nulls[c] = Arrays.copyOf(nulls[c], capacity);
+				} else if (strings[c] != null) {
+					strings[c] = Arrays.copyOf(strings[c], capacity);
+				} else {
+					codes[c] = Arrays.copyOf(codes[c], capacity);
+				}
+			}
+		}
+
+		/**
+		 * Drops the encoding maps and trims the columns to the rows read. No rows
+		 * can be added afterwards.
+		 */
+		void seal() {
+			dictionaries = null;
+			capacity = size;
+			for (int c = 0; c < numCol; ++c) {
+				if (intColumn[c]) {
+					ints[c] = Arrays.copyOf(ints[c], size);
+					nulls[c] = Arrays.copyOf(nulls[c], size);
+				} else if (strings[c] != null) {
+					strings[c] = Arrays.copyOf(strings[c], size);
+				} else {
+					codes[c] = Arrays.copyOf(codes[c], size);
+				}
+			}
+		}
+
+		// switches a column from dictionary codes to plain strings
+		private void decode(int col) {
+			List<String> dict = values.get(col);
+			String[] plain = new String[capacity];
+			for (int r = 0; r < size; ++r)
+				plain[r] = dict.get(codes[col][r]);
+			strings[col] = plain;
+			codes[col] = null;
+			dictionaries.set(col, null);
+			values.set(col, null);
+		}
+
+		String get(int row, int col) {
+			if (intColumn[col])
+				return nulls[col][row] ? null : String.valueOf(ints[col][row]);
+			if (strings[col] != null)
+				return strings[col][row];
+			return values.get(col).get(codes[col][row]);
+		}
+
+		@Override
+		public List<String> get(final int row) {
+			if (row < 0 || row >= size)
+				throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+			return new AbstractList<String>() {
+				@Override
+				public String get(int col) {
+					if (col < 0 || col >= numCol)
+						throw new IndexOutOfBoundsException("Column " + col + " of " + numCol);
+					return ResultTable.this.get(row, col);
+				}
+
+				@Override
+				public int size() {
+					return numCol;
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
 
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT). This method
@@ -165,7 +457,7 @@ public class MechanicShop {
 	 */
 	public int executeQuery(String query) throws SQLException {
 		// creates a statement object
-		Statement stmt = this._connection.createStatement();
+		Statement stmt = createStatement();
 
 		// issues the query instruction
 		ResultSet rs = stmt.executeQuery(query);
@@ -191,7 +483,7 @@ public class MechanicShop {
 	 */
 
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement();
+		Statement stmt = createStatement();
 
 		ResultSet rs = stmt.executeQuery(String.format("Select currval('%s')", sequence));
 		if (rs.next())
@@ -199,6 +491,58 @@ public class MechanicShop {
 		return -1;
 	}
 
+	/**
+	 * Method to create the key sequences for Service_Request.rid and
+	 * Closed_Request.wid and move them past the highest key in the tables. Keys
+	 * used to be MAX + 1, which hands out an archived key again once the newest
+	 * rows have been archived; a sequence never goes back.
+	 *
+	 * @throws java.sql.SQLException when failed to create a sequence
+	 */
+	public void prepareKeys() throws SQLException {
+		if (this._keysReady)
+			return;
+		String[][] keys = { { RID_SEQUENCE, "rid", "Service_Request" }, { WID_SEQUENCE, "wid", "Closed_Request" } };
+		for (String[] key : keys) {
+			executeUpdate(String.format("CREATE SEQUENCE IF NOT EXISTS %s", key[0]));
+			executeQueryAndReturnResult(String.format("SELECT setval('%1$s', GREATEST((SELECT COALESCE(MAX(%2$s),0) FROM %3$s), "
+					+ "(SELECT CASE WHEN is_called THEN last_value ELSE 0 END FROM %1$s)) + 1, false)", key[0], key[1], key[2]));
+		}
+		this._keysReady = true;
+	}// end prepareKeys
+
+	/**
+	 * Method to fetch the next value of a key sequence.
+	 *
+	 * @param sequence RID_SEQUENCE or WID_SEQUENCE
+	 * @return the next key
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int nextKey(String sequence) throws SQLException {
+		return reserveKeys(sequence, 1)[0];
+	}
+
+	/**
+	 * Method to take a block of keys from a key sequence in one round trip.
+	 *
+	 * @param sequence RID_SEQUENCE or WID_SEQUENCE
+	 * @param n        number of keys
+	 * @return the keys, ascending
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int[] reserveKeys(String sequence, int n) throws SQLException {
+		prepareKeys();
+		if (n <= 0)
+			return new int[0];
+		List<List<String>> rows = executeQueryAndReturnResult(
+				String.format("SELECT nextval('%s') FROM generate_series(1, %d)", sequence, n));
+		int[] keys = new int[rows.size()];
+		for (int i = 0; i < keys.length; ++i)
+			keys[i] = Integer.parseInt(rows.get(i).get(0));
+		Arrays.sort(keys);
+		return keys;
+	}
+
 	/**
 	 * Method to close the physical connection if it is open.
 	 */
@@ -207,11 +551,1298 @@ public class MechanicShop {
 			if (this._connection != null) {
 				this._connection.close();
 			} // end if
-		} catch (SQLException e) {
+			if (this._journal != null) {
+				this._journal.close();
+			} // end if
+		} catch (SQLException | IOException e) {
 			// ignored.
 		} // end try
 	}// end cleanup
 
+	/**
+	 * Method to replay the offline intake journal into the database. Records are
+	 * applied in transactions of REPLAY_BATCH using JDBC batches, and the highest
+	 * replayed sequence number is stored in Journal_Checkpoint in the same
+	 * transaction, so a replay interrupted at any point resumes without applying
+	 * a record twice. If a batch fails, it is retried one record at a time under
+	 * savepoints. Records the database rejects, and closes of requests that are
+	 * already closed, are written to the journal's .rejected file before the
+	 * batch commits, so nothing is lost when the journal is reset.
+	 *
+	 * @return the number of records applied
+	 * @throws java.sql.SQLException when the database fails outside a record
+	 * @throws java.io.IOException when the journal cannot be opened
+	 */
+	public int replayJournal() throws SQLException, IOException {
+		IntakeJournal journal = journal();
+		if (journal.size() == 0)
+			return 0;
+		executeUpdate("CREATE TABLE IF NOT EXISTS Journal_Checkpoint (journal CHAR(36) PRIMARY KEY, seq BIGINT NOT NULL)");
+		List<List<String>> done = executeQueryAndReturnResult(
+				String.format("SELECT seq FROM Journal_Checkpoint WHERE journal = '%s'", journal.id()));
+		long seq = done.isEmpty() ? 0 : Long.parseLong(done.get(0).get(0));
+		if (seq >= journal.size()) {
+			journal.reset();
+			return 0;
+		}
+
+		long start = System.nanoTime();
+		int replayed = 0, rejected = 0;
+		this._connection.setAutoCommit(false);
+		try {
+			while (seq < journal.size()) {
+				long end = Math.min(seq + REPLAY_BATCH, journal.size());
+				List<String> skipped = new ArrayList<String>();
+				List<int[]> closed = new ArrayList<int[]>();
+				int applied;
+				try {
+					applied = applyJournal(journal, seq, end, true, skipped, closed);
+				} catch (SQLException | RuntimeException e) {
+					this._connection.rollback();
+					// fall back to one record at a time so a bad record does not block the rest
+					skipped.clear();
+					closed.clear();
+					applied = applyJournal(journal, seq, end, false, skipped, closed);
+				}
+				// the rejects are on disk before the checkpoint moves past them
+				journal.reject(skipped);
+				this._connection.commit();
+				journal.sync();
+				for (int[] c : closed)
+					this._backlog.close(c[0], c[1]);
+				replayed += applied;
+				rejected += skipped.size();
+				seq = end;
+			}
+		} catch (SQLException e) {
+			this._connection.rollback();
+			throw e;
+		} finally {
+			this._connection.setAutoCommit(true);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("Replayed %d journaled operations in %.2fs (%.0f/s)", replayed, seconds,
+				replayed / Math.max(seconds, 1e-9)));
+		if (rejected > 0)
+			System.out.println(rejected + " journaled operations were rejected; fix and re-enter them from "
+					+ journal.rejectedFile());
+		if (journal.damaged() > 0)
+			System.out.println(journal.damaged() + " damaged journal entries could not be replayed; their bytes are in "
+					+ journal.damagedFile());
+		journal.reset();
+		return replayed;
+	}// end replayJournal
+
+	/*
+	 * applies records (from, to] of the journal inside the current transaction.
+	 * Rejected records are described in rejected, and applied closes are added to
+	 * closed as (rid, mid) for the backlog.
+	 */
+	private int applyJournal(IntakeJournal journal, long from, long to, boolean batched, List<String> rejected,
+			List<int[]> closed) throws SQLException {
+		List<List<String>> max = executeQueryAndReturnResult("SELECT (SELECT COALESCE(MAX(id),0) FROM Customer), "
+				+ "(SELECT COALESCE(MAX(ownership_id),0) FROM Owns)");
+		int customerId = Integer.parseInt(max.get(0).get(0));
+		int ownershipId = Integer.parseInt(max.get(0).get(1));
+		// rids and wids come from the sequences, since archived rows no longer count towards MAX
+		int requestCount = 0, closeCount = 0;
+		for (long seq = from + 1; seq <= to; ++seq) {
+			IntakeJournal.Record r = journal.read(seq);
+			if (r != null && r.op == IntakeJournal.REQUEST)
+				++requestCount;
+			else if (r != null && r.op == IntakeJournal.CLOSE)
+				++closeCount;
+		}
+		int[] rids = reserveKeys(RID_SEQUENCE, requestCount), wids = reserveKeys(WID_SEQUENCE, closeCount);
+		int rid = 0, wid = 0;
+
+		// batches run in this order so every row's foreign keys already exist
+		PreparedStatement[] stmts = new PreparedStatement[] {
+				this._connection.prepareStatement("INSERT INTO Customer (id, fname, lname, phone, address) VALUES (?,?,?,?,?)"),
+				this._connection.prepareStatement("INSERT INTO Car (vin, make, model, year) VALUES (?,?,?,?) ON CONFLICT (vin) DO NOTHING"),
+				this._connection.prepareStatement("INSERT INTO Owns (ownership_id, customer_id, car_vin) VALUES (?,?,?)"),
+				this._connection.prepareStatement("INSERT INTO Service_Request (rid, customer_id, car_vin, date, odometer, complain) VALUES (?,?,?,CAST(? AS DATE),?,?)"),
+				// a request closed online as well as offline keeps only its first close
+				this._connection.prepareStatement("INSERT INTO Closed_Request (wid, rid, mid, date, comment, bill) SELECT ?,?,?,CAST(? AS DATE),?,? "
+						+ "WHERE NOT EXISTS (SELECT 1 FROM Closed_Request WHERE rid = ?)") };
+		PreparedStatement customer = stmts[0], car = stmts[1], owns = stmts[2], request = stmts[3], close = stmts[4];
+		// closes in the pending batch, in batch order
+		List<IntakeJournal.Record> closes = new ArrayList<IntakeJournal.Record>();
+		List<int[]> closeKeys = new ArrayList<int[]>();
+		int applied = 0;
+		try {
+			for (long seq = from + 1; seq <= to; ++seq) {
+				IntakeJournal.Record r = journal.read(seq);
+				if (r == null)
+					continue; // lost to damage, already moved to the .damaged file
+				String[] f = r.fields;
+				Savepoint savepoint = batched ? null : this._connection.setSavepoint();
+				try {
+					switch (r.op) {
+					case IntakeJournal.CUSTOMER:
+						customer.setInt(1, ++customerId);
+						customer.setString(2, f[0]);
+						customer.setString(3, f[1]);
+						customer.setString(4, f[2]);
+						customer.setString(5, f[3]);
+						customer.addBatch();
+						journal.setAssigned(seq, customerId);
+						break;
+					case IntakeJournal.CAR:
+						car.setString(1, f[0]);
+						car.setString(2, f[1]);
+						car.setString(3, f[2]);
+						car.setInt(4, Integer.parseInt(f[3]));
+						car.addBatch();
+						if (f[4] != null && !f[4].isEmpty()) {
+							owns.setInt(1, ++ownershipId);
+							owns.setInt(2, resolveJournalKey(journal, f[4]));
+							owns.setString(3, f[0]);
+							owns.addBatch();
+						}
+						break;
+					case IntakeJournal.REQUEST:
+						request.setInt(1, rids[rid++]);
+						request.setInt(2, resolveJournalKey(journal, f[0]));
+						request.setString(3, f[1]);
+						request.setString(4, f[2]);
+						request.setInt(5, Integer.parseInt(f[3]));
+						request.setString(6, f[4]);
+						request.addBatch();
+						journal.setAssigned(seq, rids[rid - 1]);
+						break;
+					case IntakeJournal.CLOSE:
+						int closeRid = resolveJournalKey(journal, f[1]);
+						int mid = Integer.parseInt(f[0]);
+						close.setInt(1, wids[wid++]);
+						close.setInt(2, closeRid);
+						close.setInt(3, mid);
+						close.setString(4, f[2]);
+						close.setString(5, f[3]);
+						close.setInt(6, Integer.parseInt(f[4]));
+						close.setInt(7, closeRid);
+						close.addBatch();
+						closes.add(r);
+						closeKeys.add(new int[] { closeRid, mid });
+						break;
+					default:
+						throw new SQLException("Unknown journal operation " + r.op);
+					}
+					if (!batched) {
+						applied -= executeJournalBatches(stmts, closes, closeKeys, rejected, closed);
+						this._connection.releaseSavepoint(savepoint);
+					}
+					++applied;
+				} catch (SQLException | RuntimeException e) {
+					if (batched)
+						throw e;
+					this._connection.rollback(savepoint);
+					for (PreparedStatement stmt : stmts)
+						stmt.clearBatch();
+					closes.clear();
+					closeKeys.clear();
+					journal.setAssigned(seq, 0);
+					rejected.add(IntakeJournal.describe(r, e.getMessage()));
+					System.err.println("Skipping journal record J" + seq + " " + Arrays.toString(f) + ": " + e.getMessage());
+				}
+			}
+			if (batched)
+				applied -= executeJournalBatches(stmts, closes, closeKeys, rejected, closed);
+		} finally {
+			for (PreparedStatement stmt : stmts)
+				stmt.close();
+		}
+		executeUpdate(String.format("INSERT INTO Journal_Checkpoint (journal, seq) VALUES ('%s', %d) "
+				+ "ON CONFLICT (journal) DO UPDATE SET seq = EXCLUDED.seq", journal.id(), to));
+		return applied;
+	}// end applyJournal
+
+	/*
+	 * runs the pending batches in foreign key order. Closes whose request was
+	 * already closed insert nothing; they are reported as rejected.
+	 *
+	 * returns the number of closes skipped
+	 */
+	private static int executeJournalBatches(PreparedStatement[] stmts, List<IntakeJournal.Record> closes,
+			List<int[]> closeKeys, List<String> rejected, List<int[]> closed) throws SQLException {
+		int[] counts = null;
+		for (int i = 0; i < stmts.length; ++i) {
+			int[] n = stmts[i].executeBatch();
+			if (i == stmts.length - 1)
+				counts = n;
+		}
+		int skipped = 0;
+		for (int i = 0; i < closes.size(); ++i) {
+			if (counts[i] == 0) {
+				IntakeJournal.Record r = closes.get(i);
+				rejected.add(IntakeJournal.describe(r, "request " + closeKeys.get(i)[0] + " is already closed"));
+				System.err.println("Skipping journal record J" + r.seq + ": request " + closeKeys.get(i)[0] + " is already closed");
+				++skipped;
+			} else {
+				closed.add(closeKeys.get(i));
+			}
+		}
+		closes.clear();
+		closeKeys.clear();
+		return skipped;
+	}
+
+	// a key is either a database id or "J<seq>" naming a journaled record
+	private static int resolveJournalKey(IntakeJournal journal, String key) throws SQLException {
+		if (!key.startsWith("J"))
+			return Integer.parseInt(key.trim());
+		int assigned = journal.assigned(Long.parseLong(key.substring(1).trim()));
+		if (assigned == 0)
+			throw new SQLException("Journal record " + key + " was not replayed");
+		return assigned;
+	}
+
+	/**
+	 * Method to create the indexes the reports rely on. The (car_vin, date, rid)
+	 * index lets the fleet-aging report fetch each car's latest service request
+	 * with one index probe instead of scanning the car's whole history.
+	 *
+	 * @throws java.sql.SQLException when failed to create an index
+	 */
+	public void prepareIndexes() throws SQLException {
+		executeUpdate("CREATE INDEX IF NOT EXISTS service_request_car_date_idx ON Service_Request (car_vin, date, rid)");
+		// backs the NOT EXISTS anti-join that decides whether a request is open
+		executeUpdate("CREATE INDEX IF NOT EXISTS closed_request_rid_idx ON Closed_Request (rid)");
+	}// end prepareIndexes
+
+	/**
+	 * Method to seed or refresh the in-process backlog of open service requests.
+	 * A request is open while it has no matching Closed_Request row. The first
+	 * call reads every open request. Later calls only read mechanics and
+	 * requests above the highest id already read, and closes above the highest
+	 * wid already read, which drop their request and release its mechanic.
+	 * Keys come from sequences, so a row committed out of key order after a
+	 * refresh is only picked up by isRequestOpen.
+	 *
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public void loadBacklog() throws SQLException {
+		Statement stmt = createStatement();
+
+		ResultSet rs = stmt.executeQuery("SELECT id, experience FROM Mechanic WHERE id > " + _backlogMechanic + " ORDER BY id");
+		while (rs.next()) {
+			this._backlogMechanic = rs.getInt(1);
+			this._backlog.addMechanic(_backlogMechanic, rs.getInt(2));
+		}
+		rs.close();
+
+		// the marks are taken before the scans: a row written meanwhile is read twice, never missed
+		rs = stmt.executeQuery("SELECT (SELECT MAX(rid) FROM Service_Request), (SELECT MAX(wid) FROM Closed_Request)");
+		rs.next();
+		int rid = rs.getInt(1);
+		if (rs.wasNull())
+			rid = _backlogRid;
+		int wid = rs.getInt(2);
+		if (rs.wasNull())
+			wid = _backlogWid;
+		rs.close();
+
+		if (this._backlogLoaded) {
+			rs = stmt.executeQuery("SELECT rid, mid FROM Closed_Request WHERE wid > " + _backlogWid);
+			while (rs.next())
+				this._backlog.close(rs.getInt(1), rs.getInt(2));
+			rs.close();
+		}
+
+		rs = stmt.executeQuery("SELECT S.rid, S.date FROM Service_Request S WHERE S.rid > " + _backlogRid
+				+ " AND NOT EXISTS (SELECT 1 FROM Closed_Request R WHERE R.rid = S.rid) ORDER BY S.rid");
+		while (rs.next())
+			this._backlog.open(rs.getInt(1), rs.getString(2));
+		stmt.close();
+
+		this._backlogRid = Math.max(_backlogRid, rid);
+		this._backlogWid = Math.max(_backlogWid, wid);
+		this._backlogLoaded = true;
+	}// end loadBacklog
+
+	/**
+	 * Method to check with the database whether a service request is open. The
+	 * backlog is only a cache: it is updated from the answer, so requests opened
+	 * or closed by another desk are picked up here.
+	 *
+	 * @param rid the service request id
+	 * @return true when the request exists and has no Closed_Request
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public boolean isRequestOpen(int rid) throws SQLException {
+		List<List<String>> open = executeQueryAndReturnResult(String.format("SELECT S.date FROM Service_Request S WHERE S.rid = %d "
+				+ "AND NOT EXISTS (SELECT 1 FROM Closed_Request R WHERE R.rid = S.rid)", rid));
+		if (open.isEmpty()) {
+			this._backlog.close(rid, -1);
+			return false;
+		}
+		this._backlog.open(rid, open.get(0).get(0));
+		return true;
+	}// end isRequestOpen
+
+	/**
+	 * Method to move closed service history out of the hot tables. Every month
+	 * older than the last monthsHot months is exported to its own archive file
+	 * and its closed requests are then deleted from Closed_Request and
+	 * Service_Request, one transaction per month. The archive file is complete
+	 * before the delete commits; if the commit fails, the file is removed again.
+	 * Open requests are never archived.
+	 *
+	 * @param monthsHot number of recent months to keep in the hot tables
+	 * @return the number of service requests archived
+	 * @throws java.sql.SQLException when failed to export or delete
+	 * @throws java.io.IOException when failed to write an archive file
+	 */
+	public long archiveHistory(int monthsHot) throws SQLException, IOException {
+		// the sequences must hold the high-water mark before the newest rows can leave
+		prepareKeys();
+		List<List<String>> periods = executeQueryAndReturnResult(String.format(
+				"SELECT DISTINCT to_char(S.date, 'YYYY-MM') FROM Service_Request S, Closed_Request R WHERE R.rid = S.rid "
+						+ "AND S.date < date_trunc('month', CURRENT_DATE) - %d * INTERVAL '1 month' ORDER BY 1", monthsHot));
+		long archived = 0;
+		for (List<String> row : periods) {
+			String period = row.get(0);
+			File target = this._archive.newFile(period);
+			this._connection.setAutoCommit(false);
+			try {
+				// pin the set of requests so the export and the deletes see the same rows
+				executeUpdate(String.format("CREATE TEMP TABLE Archiving ON COMMIT DROP AS SELECT DISTINCT S.rid "
+						+ "FROM Service_Request S, Closed_Request R WHERE R.rid = S.rid "
+						+ "AND S.date >= DATE '%1$s-01' AND S.date < DATE '%1$s-01' + INTERVAL '1 month'", period));
+				long rows = this._archive.export(this._connection,
+						"SELECT S.rid, S.customer_id, S.car_vin, S.date, S.odometer, S.complain, R.wid, R.mid, R.date, R.comment, R.bill "
+								+ "FROM Archiving A, Service_Request S, Closed_Request R WHERE S.rid = A.rid AND R.rid = A.rid",
+						target);
+				executeUpdate("DELETE FROM Closed_Request WHERE rid IN (SELECT rid FROM Archiving)");
+				executeUpdate("DELETE FROM Service_Request WHERE rid IN (SELECT rid FROM Archiving)");
+				this._connection.commit();
+				archived += rows;
+				System.out.println("Archived " + rows + " closed requests from " + period + " to " + target);
+			} catch (SQLException | IOException e) {
+				this._connection.rollback();
+				target.delete();
+				throw e;
+			} finally {
+				this._connection.setAutoCommit(true);
+			}
+		}
+		return archived;
+	}// end archiveHistory
+
+	/**
+	 * Method to make archived history queryable. Loads every archived period from
+	 * the given month on into the session's temporary Archived_Service table,
+	 * which has the same columns as the archive files. Rows that are still in
+	 * the hot tables, or appear in more than one archive file, are dropped by
+	 * (rid, wid), so a close is never counted twice.
+	 *
+	 * @param from first period to load, as YYYY-MM
+	 * @return the number of archived rows loaded
+	 * @throws java.sql.SQLException when failed to load
+	 * @throws java.io.IOException when failed to read an archive file
+	 */
+	public long loadArchive(String from) throws SQLException, IOException {
+		executeUpdate("CREATE TEMP TABLE IF NOT EXISTS Archived_Service AS SELECT S.rid, S.customer_id, S.car_vin, S.date, "
+				+ "S.odometer, S.complain, R.wid, R.mid, R.date AS closed_date, R.comment, R.bill "
+				+ "FROM Service_Request S, Closed_Request R WHERE false");
+		// lets the fleet-aging report find a car's latest archived request with one probe
+		executeUpdate("CREATE INDEX IF NOT EXISTS archived_service_car_date_idx ON Archived_Service (car_vin, date, rid)");
+		executeUpdate("TRUNCATE Archived_Service");
+		long rows = 0;
+		for (File f : this._archive.files(from))
+			rows += this._archive.load(this._connection, "Archived_Service", f);
+		executeUpdate("DELETE FROM Archived_Service A USING Closed_Request R WHERE A.rid = R.rid AND A.wid = R.wid");
+		executeUpdate("DELETE FROM Archived_Service A USING Archived_Service B WHERE A.rid = B.rid AND A.wid = B.wid AND A.ctid > B.ctid");
+		executeUpdate("ANALYZE Archived_Service");
+		return rows;
+	}// end loadArchive
+
+	// asks for an archive period to include in a report, null for hot tables only
+	private static String readArchivePeriod() throws IOException {
+		System.out.print("\tInclude archived history from (YYYY-MM, blank for current only): ");
+		String from = in.readLine().trim();
+		while (!from.isEmpty() && !from.matches("\\d{4}-\\d{2}")) {
+			System.out.print("\n Invalid period, please re-enter: ");
+			from = in.readLine().trim();
+		}
+		return from.isEmpty() ? null : from;
+	}
+
+	/**
+	 * Closed service history moved out of Service_Request and Closed_Request.
+	 * Every archived month is one or more gzip'd CSV files named
+	 * service_YYYY-MM_&lt;millis&gt;.csv.gz in the archive directory, written
+	 * with COPY TO STDOUT and read back with COPY FROM STDIN so rows stream
+	 * between the server and disk without being held in memory.
+	 */
+	static class ServiceArchive {
+		static final String COLUMNS = "rid, customer_id, car_vin, date, odometer, complain, wid, mid, closed_date, comment, bill";
+		private static final Pattern NAME = Pattern.compile("service_(\\d{4}-\\d{2})_\\d+\\.csv\\.gz");
+		private static final int BUFFER = 1 << 16;
+
+		private final File dir;
+
+		ServiceArchive(File dir) {
+			this.dir = dir;
+		}
+
+		File newFile(String period) {
+			return new File(dir, "service_" + period + "_" + System.currentTimeMillis() + ".csv.gz");
+		}
+
+		/**
+		 * @param from first period to include, as YYYY-MM
+		 * @return archive files for that period and later, oldest first
+		 */
+		List<File> files(String from) {
+			List<File> result = new ArrayList<File>();
+			File[] all = dir.listFiles();
+			if (all == null)
+				return result;
+			Arrays.sort(all);
+			for (File f : all) {
+				Matcher m = NAME.matcher(f.getName());
+				if (m.matches() && m.group(1).compareTo(from) >= 0)
+					result.add(f);
+			}
+			return result;
+		}
+
+		/**
+		 * Streams the rows of a SELECT into a compressed file. The data is written
+		 * to a .partial file, synced, and then renamed, so a finished file is
+		 * always complete. The .partial file is removed when the export fails.
+		 *
+		 * @return the number of rows written
+		 */
+		long export(Connection conn, String select, File target) throws SQLException, IOException {
+			dir.mkdirs();
+			File partial = new File(target.getPath() + ".partial");
+			long rows;
+			boolean complete = false;
+			try {
+				FileOutputStream fos = new FileOutputStream(partial);
+				try {
+					GZIPOutputStream out = new GZIPOutputStream(new BufferedOutputStream(fos, BUFFER), BUFFER);
+					rows = ((PGConnection) conn).getCopyAPI().copyOut("COPY (" + select + ") TO STDOUT WITH CSV", out);
+					out.finish();
+					out.flush();
+					fos.getFD().sync();
+				} finally {
+					fos.close();
+				}
+				if (!partial.renameTo(target))
+					throw new IOException("Unable to create archive file " + target);
+				complete = true;
+			} finally {
+				if (!complete)
+					partial.delete();
+			}
+			return rows;
+		}
+
+		/**
+		 * Streams a compressed archive file into a table with COLUMNS.
+		 *
+		 * @return the number of rows loaded
+		 */
+		long load(Connection conn, String table, File source) throws SQLException, IOException {
+			InputStream in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(source), BUFFER), BUFFER);
+			try {
+				return ((PGConnection) conn).getCopyAPI().copyIn("COPY " + table + " (" + COLUMNS + ") FROM STDIN WITH CSV", in);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Set of service requests that have no Closed_Request yet, together with the
+	 * mechanic each one is assigned to. Mechanics are kept in an ordered set keyed
+	 * by (current load, experience) so that picking the next mechanic, and moving
+	 * one when its load changes, are O(log n).
+	 */
+	static class ServiceBacklog {
+		static class OpenRequest {
+			final int rid;
+			final String date;
+			int mid = -1;
+
+			OpenRequest(int rid, String date) {
+				this.rid = rid;
+				this.date = date;
+			}
+		}
+
+		static class MechanicLoad {
+			final int id;
+			final int experience;
+			int load = 0;
+
+			MechanicLoad(int id, int experience) {
+				this.id = id;
+				this.experience = experience;
+			}
+		}
+
+		// least loaded first, most experienced breaks ties
+		private static final Comparator<MechanicLoad> BY_LOAD = new Comparator<MechanicLoad>() {
+			public int compare(MechanicLoad a, MechanicLoad b) {
+				if (a.load != b.load)
+					return Integer.compare(a.load, b.load);
+				if (a.experience != b.experience)
+					return Integer.compare(b.experience, a.experience);
+				return Integer.compare(a.id, b.id);
+			}
+		};
+
+		private final TreeMap<Integer, OpenRequest> open = new TreeMap<Integer, OpenRequest>();
+		private final TreeSet<Integer> unassigned = new TreeSet<Integer>();
+		private final Map<Integer, MechanicLoad> mechanics = new HashMap<Integer, MechanicLoad>();
+		private final TreeSet<MechanicLoad> queue = new TreeSet<MechanicLoad>(BY_LOAD);
+
+		public synchronized void addMechanic(int id, int experience) {
+			if (mechanics.containsKey(id))
+				return;
+			MechanicLoad m = new MechanicLoad(id, experience);
+			mechanics.put(id, m);
+			queue.add(m);
+		}
+
+		public synchronized boolean isOpen(int rid) {
+			return open.containsKey(rid);
+		}
+
+		public synchronized int size() {
+			return open.size();
+		}
+
+		/**
+		 * Registers a new open request and assigns it to a mechanic if one is known.
+		 *
+		 * @return the assigned mechanic id, or -1 when no mechanic is available
+		 */
+		public synchronized int open(int rid, String date) {
+			if (open.containsKey(rid))
+				return open.get(rid).mid;
+			OpenRequest r = new OpenRequest(rid, date);
+			open.put(rid, r);
+			unassigned.add(rid);
+			return assign(r);
+		}
+
+		/**
+		 * Hands an open request to the mechanic who is actually working it, moving
+		 * one unit of load from the assigned mechanic to that one.
+		 */
+		public synchronized void reassign(int rid, int mid) {
+			OpenRequest r = open.get(rid);
+			MechanicLoad to = mechanics.get(mid);
+			if (r == null || to == null || r.mid == mid)
+				return;
+			release(r.mid);
+			unassigned.remove(rid);
+			queue.remove(to);
+			to.load++;
+			queue.add(to);
+			r.mid = mid;
+		}
+
+		/**
+		 * Removes a request from the backlog and releases the mechanic holding it.
+		 *
+		 * @param mid the mechanic closing the request, or -1 when not known
+		 * @return false when the request was not open
+		 */
+		public synchronized boolean close(int rid, int mid) {
+			if (mid >= 0)
+				reassign(rid, mid);
+			OpenRequest r = open.remove(rid);
+			if (r == null)
+				return false;
+			unassigned.remove(rid);
+			release(r.mid);
+			return true;
+		}
+
+		/**
+		 * Assigns every unassigned request, oldest first.
+		 *
+		 * @return the number of requests assigned
+		 */
+		public synchronized int dispatch() {
+			int n = 0;
+			while (!unassigned.isEmpty() && !queue.isEmpty()) {
+				assign(open.get(unassigned.first()));
+				++n;
+			}
+			return n;
+		}
+
+		public synchronized int assignedTo(int rid) {
+			OpenRequest r = open.get(rid);
+			return r == null ? -1 : r.mid;
+		}
+
+		/**
+		 * @param limit maximum number of rows to return
+		 * @return the oldest open requests as (rid, date, mid) records
+		 */
+		public synchronized List<List<String>> oldest(int limit) {
+			List<List<String>> result = new ArrayList<List<String>>();
+			for (OpenRequest r : open.values()) {
+				if (result.size() >= limit)
+					break;
+				result.add(Arrays.asList(String.valueOf(r.rid), r.date, String.valueOf(r.mid)));
+			}
+			return result;
+		}
+
+		private void release(int mid) {
+			MechanicLoad m = mechanics.get(mid);
+			if (m == null || m.load == 0)
+				return;
+			queue.remove(m);
+			m.load--;
+			queue.add(m);
+		}
+
+		private int assign(OpenRequest r) {
+			MechanicLoad m = queue.pollFirst();
+			if (m == null)
+				return -1;
+			m.load++;
+			queue.add(m);
+			r.mid = m.id;
+			unassigned.remove(r.rid);
+			return m.id;
+		}
+	}
+
+	/**
+	 * Append-only journal of intake operations captured while the database is
+	 * unreachable. The file is memory-mapped and grows by doubling. It starts with
+	 * a header (magic, version, journal UUID) followed by records laid out as
+	 *
+	 * <pre>
+	 * int length | int crc32 | int assigned | long seq | byte op | short n | n fields
+	 * </pre>
+	 *
+	 * where each field is an int byte count (-1 for null) and UTF-8 bytes, and the
+	 * checksum covers everything after the assigned slot. The assigned slot holds
+	 * the key the database gave the row on replay, so later records can refer to
+	 * a journaled customer or request as "J&lt;seq&gt;".
+	 * <p>
+	 * The header also keeps the end of the last completed append and the highest
+	 * sequence number issued. On open the records are scanned: an invalid record
+	 * past the end mark is a torn write and is cut off, while damage before it is
+	 * moved to &lt;journal&gt;.damaged and scanning resumes at the next valid
+	 * record. Sequence numbers lost to damage, including the last ones issued,
+	 * stay as holes, so J# references keep their meaning and are never reused.
+	 */
+	static class IntakeJournal {
+		static final byte CUSTOMER = 1;
+		static final byte CAR = 2;
+		static final byte REQUEST = 3;
+		static final byte CLOSE = 4;
+		static final String[] OPERATIONS = { "", "AddCustomer", "AddCar", "InsertServiceRequest", "CloseServiceRequest" };
+
+		private static final int MAGIC = 0x4d534a31; // "MSJ1"
+		private static final int VERSION = 2;
+		private static final int HEADER = 40;
+		// header offsets of the end of the last completed append and of its sequence number
+		private static final int END = 24;
+		private static final int LAST_SEQ = 32;
+		private static final int RECORD_HEADER = 12;
+		private static final int INITIAL_SIZE = 1 << 20;
+
+		static class Record {
+			final int offset;
+			final long seq;
+			final byte op;
+			final String[] fields;
+
+			Record(int offset, long seq, byte op, String[] fields) {
+				this.offset = offset;
+				this.seq = seq;
+				this.op = op;
+				this.fields = fields;
+			}
+		}
+
+		private final File file;
+		private final FileChannel channel;
+		private MappedByteBuffer map;
+		private String id;
+		// record offsets, indexed by seq - 1; null where a record was damaged
+		private final List<Integer> offsets = new ArrayList<Integer>();
+		private int position = HEADER;
+		private int damaged = 0;
+
+		private IntakeJournal(File file) throws IOException {
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), INITIAL_SIZE));
+			if (map.getInt(0) != MAGIC) {
+				writeHeader();
+			} else if (map.getInt(4) != VERSION) {
+				throw new IOException("Unsupported journal version " + map.getInt(4) + " in " + file);
+			}
+			this.id = new UUID(map.getLong(8), map.getLong(16)).toString();
+			scan();
+		}
+
+		static IntakeJournal open(File file) throws IOException {
+			return new IntakeJournal(file);
+		}
+
+		String id() {
+			return id;
+		}
+
+		// where damaged records found on open are copied to
+		File damagedFile() {
+			return new File(file.getPath() + ".damaged");
+		}
+
+		// where records the database rejected on replay are written, one per line
+		File rejectedFile() {
+			return new File(file.getPath() + ".rejected");
+		}
+
+		/**
+		 * Appends rejected records to rejectedFile() and syncs it.
+		 *
+		 * @param lines records as produced by describe()
+		 */
+		void reject(List<String> lines) throws IOException {
+			if (lines.isEmpty())
+				return;
+			FileOutputStream out = new FileOutputStream(rejectedFile(), true);
+			try {
+				for (String line : lines)
+					out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		}
+
+		// one tab-separated line: J<seq>, operation, fields, reason
+		static String describe(Record r, String reason) {
+			StringBuilder line = new StringBuilder("J").append(r.seq).append('\t')
+					.append(r.op > 0 && r.op < OPERATIONS.length ? OPERATIONS[r.op] : "op " + r.op);
+			for (String f : r.fields)
+				line.append('\t').append(f == null ? "" : f.replace('\t', ' ').replace('\n', ' '));
+			return line.append('\t').append(reason == null ? "" : reason.replace('\n', ' ')).toString();
+		}
+
+		// number of records lost to damage when the journal was opened
+		synchronized int damaged() {
+			return damaged;
+		}
+
+		synchronized int size() {
+			return offsets.size();
+		}
+
+		/**
+		 * Appends one operation. The record is in the page cache when this returns;
+		 * call sync() to force it to disk.
+		 *
+		 * @return the sequence number of the new record, starting at 1
+		 */
+		synchronized long append(byte op, String... fields) throws IOException {
+			byte[][] bytes = new byte[fields.length][];
+			int length = 8 + 1 + 2;
+			for (int i = 0; i < fields.length; ++i) {
+				if (fields[i] != null)
+					bytes[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+				length += 4 + (bytes[i] == null ? 0 : bytes[i].length);
+			}
+			ensureCapacity(position + RECORD_HEADER + length + 4);
+
+			long seq = offsets.size() + 1;
+			ByteBuffer body = map.duplicate();
+			body.position(position + RECORD_HEADER);
+			body.putLong(seq).put(op).putShort((short) fields.length);
+			for (byte[] b : bytes) {
+				body.putInt(b == null ? -1 : b.length);
+				if (b != null)
+					body.put(b);
+			}
+			map.putInt(position + 4, checksum(position + RECORD_HEADER, length));
+			map.putInt(position + 8, 0);
+			// the length goes in last so a torn write never looks like a record
+			map.putInt(position, length);
+			offsets.add(position);
+			position += RECORD_HEADER + length;
+			map.putLong(LAST_SEQ, seq);
+			map.putLong(END, position);
+			return seq;
+		}
+
+		synchronized void sync() {
+			map.force();
+		}
+
+		/**
+		 * @return the record, or null when it was lost to damage
+		 */
+		synchronized Record read(long seq) {
+			Integer offset = offsets.get((int) (seq - 1));
+			if (offset == null)
+				return null;
+			ByteBuffer body = map.duplicate();
+			body.position(offset + RECORD_HEADER);
+			body.getLong();
+			byte op = body.get();
+			String[] fields = new String[body.getShort()];
+			for (int i = 0; i < fields.length; ++i) {
+				int n = body.getInt();
+				if (n < 0)
+					continue;
+				byte[] b = new byte[n];
+				body.get(b);
+				fields[i] = new String(b, StandardCharsets.UTF_8);
+			}
+			return new Record(offset, seq, op, fields);
+		}
+
+		synchronized void setAssigned(long seq, int key) {
+			Integer offset = offsets.get((int) (seq - 1));
+			if (offset != null)
+				map.putInt(offset + 8, key);
+		}
+
+		synchronized int assigned(long seq) {
+			if (seq < 1 || seq > offsets.size() || offsets.get((int) (seq - 1)) == null)
+				return 0;
+			return map.getInt(offsets.get((int) (seq - 1)) + 8);
+		}
+
+		/**
+		 * Drops every record and starts a new journal id. Only call this after all
+		 * records have been committed to the database.
+		 */
+		synchronized void reset() {
+			for (int i = HEADER; i < position; ++i)
+				map.put(i, (byte) 0);
+			writeHeader();
+			offsets.clear();
+			position = HEADER;
+			damaged = 0;
+			id = new UUID(map.getLong(8), map.getLong(16)).toString();
+			map.force();
+		}
+
+		synchronized void close() throws IOException {
+			map.force();
+			channel.close();
+		}
+
+		private void writeHeader() {
+			UUID uuid = UUID.randomUUID();
+			map.putInt(0, MAGIC);
+			map.putInt(4, VERSION);
+			map.putLong(8, uuid.getMostSignificantBits());
+			map.putLong(16, uuid.getLeastSignificantBits());
+			map.putLong(END, HEADER);
+			map.putLong(LAST_SEQ, 0);
+		}
+
+		private void scan() throws IOException {
+			int limit = map.capacity();
+			long written = map.getLong(END);
+			// without an end mark every byte may hold acknowledged records
+			int end = written < HEADER ? limit : (int) Math.min(written, limit);
+			int at = HEADER;
+			while (at + RECORD_HEADER <= limit) {
+				if (isRecord(at, limit)) {
+					long seq = map.getLong(at + RECORD_HEADER);
+					while (offsets.size() + 1 < seq)
+						offsets.add(null);
+					offsets.add(at);
+					at += RECORD_HEADER + map.getInt(at);
+					position = at;
+					continue;
+				}
+				// past the last completed append only a torn write can follow
+				if (at >= end)
+					break;
+				int next = at + 1;
+				while (next + RECORD_HEADER <= end && !isRecord(next, limit))
+					++next;
+				// no record fits in what is left before the end mark: the rest is one stretch
+				if (next + RECORD_HEADER > end)
+					next = end;
+				if (!isZero(at, next))
+					quarantine(at, next);
+				at = next;
+			}
+			// everything from here on is torn or already copied aside, so new appends start clean
+			for (int i = position; i < Math.min(at + RECORD_HEADER, limit); ++i)
+				map.put(i, (byte) 0);
+			// records lost after the last valid one still hold their sequence numbers;
+			// a count larger than the file could hold is a damaged header and is ignored
+			long issued = map.getLong(LAST_SEQ);
+			if (issued <= (limit - HEADER) / (RECORD_HEADER + 8 + 1 + 2))
+				while (offsets.size() < issued)
+					offsets.add(null);
+			damaged = Collections.frequency(offsets, null);
+			map.putLong(LAST_SEQ, offsets.size());
+			map.putLong(END, position);
+			map.force();
+		}
+
+		// true when a complete record with the next expected sequence starts at offset
+		private boolean isRecord(int offset, int limit) {
+			int length = map.getInt(offset);
+			if (length < 8 + 1 + 2 || length > limit - offset - RECORD_HEADER)
+				return false;
+			if (map.getLong(offset + RECORD_HEADER) <= offsets.size())
+				return false;
+			return map.getInt(offset + 4) == checksum(offset + RECORD_HEADER, length);
+		}
+
+		private boolean isZero(int from, int to) {
+			for (int i = from; i < to; ++i)
+				if (map.get(i) != 0)
+					return false;
+			return true;
+		}
+
+		// moves damaged bytes out of the journal; the zeroed gap is skipped quietly on the next open
+		private void quarantine(int from, int to) throws IOException {
+			byte[] bytes = new byte[to - from];
+			ByteBuffer slice = map.duplicate();
+			slice.position(from);
+			slice.get(bytes);
+			FileOutputStream out = new FileOutputStream(damagedFile(), true);
+			try {
+				out.write(bytes);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			for (int i = from; i < to; ++i)
+				map.put(i, (byte) 0);
+			System.err.println("Journal " + file + ": skipped damaged bytes " + from + "-" + to + ", copied to " + damagedFile());
+		}
+
+		private int checksum(int offset, int length) {
+			CRC32 crc = new CRC32();
+			ByteBuffer slice = map.duplicate();
+			slice.position(offset).limit(offset + length);
+			crc.update(slice);
+			return (int) crc.getValue();
+		}
+
+		private void ensureCapacity(int needed) throws IOException {
+			if (needed <= map.capacity())
+				return;
+			long size = map.capacity();
+			while (size < needed)
+				size *= 2;
+			map.force();
+			map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	/**
+	 * A chain of shops, one database per location. Intake goes to the shop the
+	 * desk selects; the reports run on every shop in parallel and the rows are
+	 * merged here. Ids are only unique within a shop, so the most-serviced cars
+	 * are summed per VIN, car counts and total bills per customer (name and
+	 * phone), and fleet aging keeps each VIN's latest reading, all before any
+	 * threshold or ordering is applied.
+	 */
+	static class ShopChain {
+		interface ShopQuery {
+			List<List<String>> run(MechanicShop shop) throws Exception;
+		}
+
+		final List<MechanicShop> shops = new ArrayList<MechanicShop>();
+		final List<String> names = new ArrayList<String>();
+		private final ExecutorService pool;
+
+		/**
+		 * @param locations shop databases as dbname or dbname:port
+		 * @param dbport    port for locations that do not name one
+		 */
+		ShopChain(String[] locations, String dbport, String user) throws SQLException {
+			for (String location : locations) {
+				String[] parts = location.trim().split(":");
+				String port = parts.length > 1 ? parts[1].trim() : dbport;
+				String name = parts[0].trim() + ":" + port;
+				if (parts[0].trim().isEmpty() || names.contains(name))
+					throw new IllegalArgumentException("Shop database '" + location.trim() + "' is empty or listed twice");
+				names.add(name);
+			}
+			for (String name : names) {
+				String[] parts = name.split(":");
+				// journal and archive are keyed by database and port so two shops never share files
+				shops.add(new MechanicShop(parts[0], parts[1], user, "", parts[0] + "_" + parts[1]));
+			}
+			this.pool = Executors.newFixedThreadPool(shops.size());
+		}
+
+		void startSession() {
+			for (int i = 0; i < shops.size(); ++i) {
+				if (shops.get(i).isOffline())
+					continue;
+				try {
+					shops.get(i).startSession();
+				} catch (Exception e) {
+					System.err.println(names.get(i) + ": " + e.getMessage());
+				}
+			}
+		}
+
+		// asks which shop an intake operation belongs to
+		MechanicShop select() {
+			for (int i = 0; i < shops.size(); ++i)
+				System.out.println("\t" + (i + 1) + ". " + names.get(i) + (shops.get(i).isOffline() ? " (offline)" : ""));
+			int choice = readChoice();
+			while (choice < 1 || choice > shops.size()) {
+				System.out.println("Your input is invalid!");
+				choice = readChoice();
+			}
+			return shops.get(choice - 1);
+		}
+
+		/**
+		 * Runs the query on every shop at once. A shop that fails is reported and
+		 * contributes no rows.
+		 *
+		 * @return one result per shop, in shop order
+		 */
+		List<List<List<String>>> scatter(final ShopQuery query) throws InterruptedException {
+			List<Future<List<List<String>>>> futures = new ArrayList<Future<List<List<String>>>>();
+			for (final MechanicShop shop : shops)
+				futures.add(pool.submit(() -> query.run(shop)));
+			List<List<List<String>>> results = new ArrayList<List<List<String>>>();
+			for (int i = 0; i < futures.size(); ++i) {
+				try {
+					results.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					System.err.println(names.get(i) + " skipped: " + e.getCause().getMessage());
+					results.add(Collections.<List<String>>emptyList());
+				}
+			}
+			return results;
+		}
+
+		// prints every shop's rows prefixed with the shop name
+		private void printByShop(List<List<List<String>>> results) {
+			int n = 0;
+			for (int s = 0; s < results.size(); ++s) {
+				for (List<String> row : results.get(s)) {
+					System.out.println(names.get(s) + " " + row);
+					++n;
+				}
+			}
+			System.out.println("The resulting query is of length " + n);
+		}
+
+		void ListCustomersWithBillLessThan100() throws Exception {// 6
+			final String from = readArchivePeriod();
+			printByShop(scatter(shop -> {
+				if (from != null)
+					shop.loadArchive(from);
+				return shop.executeQueryAndReturnResult(billLessThan100Query(from != null));
+			}));
+		}
+
+		void ListCustomersWithMoreThan20Cars() throws Exception {// 7
+			List<List<String>> answer = customersWithMoreCars(scatter(shop -> shop.executeQueryAndReturnResult(
+					"SELECT C.fname, C.lname, C.phone, COUNT(DISTINCT O.car_vin) FROM Owns O, Customer C WHERE O.customer_id = C.id "
+							+ "GROUP BY O.customer_id, C.fname, C.lname, C.phone")), 20);
+			for (List<String> row : answer) {
+				System.out.println(row);
+			}
+			System.out.println("The resulting query is of length " + answer.size());
+		}
+
+		void ListCarsBeforeYearWithMileage() throws Exception {// 8
+			int year = readIntOrDefault("\tEnter model year cutoff", 1995);
+			int mileage = readIntOrDefault("\tEnter minimum mileage", 50000);
+			final String from = readArchivePeriod();
+			// every car's latest reading: a newer one at another shop may fall below the mileage
+			final String query = fleetAgingQuery(year, 0, from != null);
+			List<List<String>> answer = latestReadings(scatter(shop -> {
+				if (from != null)
+					shop.loadArchive(from);
+				return shop.executeQueryAndReturnResult(query);
+			}), mileage);
+			for (List<String> row : answer) {
+				System.out.println(row);
+			}
+			System.out.println("The resulting query is of length " + answer.size());
+		}
+
+		void ListKCarsWithTheMostServices() throws Exception {// 9
+			System.out.println("Select number of Cars you wanna output");
+			int k = Integer.parseInt(in.readLine().trim());
+			final String from = readArchivePeriod();
+
+			List<List<String>> answer = mostServicedCars(scatter(shop -> {
+				if (from != null)
+					shop.loadArchive(from);
+				return shop.executeQueryAndReturnResult("SELECT V.car_vin, C.make, C.model, COUNT(*) FROM " + serviceHistory(from != null)
+						+ ", Car C WHERE C.vin = V.car_vin GROUP BY V.car_vin, C.make, C.model");
+			}), k);
+			for (List<String> row : answer) {
+				System.out.println(row);
+			}
+			System.out.println("The resulting query is of length" + answer.size());
+		}
+
+		void ListCustomersInDescendingOrderOfTheirTotalBill() throws Exception {// 10
+			final String from = readArchivePeriod();
+			List<List<String>> answer = totalBills(scatter(shop -> {
+				if (from != null)
+					shop.loadArchive(from);
+				return shop.executeQueryAndReturnResult("SELECT C.fname, C.lname, C.phone, sum(H.bill) FROM Customer C, "
+						+ billHistory(from != null) + " WHERE C.id = H.customer_id GROUP BY H.customer_id, C.fname, C.lname, C.phone");
+			}));
+			for (List<String> row : answer) {
+				System.out.println(row);
+			}
+			System.out.println("The resulting query is of length  " + answer.size());
+		}
+
+		/**
+		 * Merges per-shop (vin, make, model, count) rows. A car serviced at several
+		 * shops is counted once with the summed total.
+		 *
+		 * @return the k most serviced cars as (make, model, count), most first
+		 */
+		static List<List<String>> mostServicedCars(List<List<List<String>>> results, int k) {
+			Map<String, List<String>> cars = new HashMap<String, List<String>>();
+			Map<String, Long> counts = new HashMap<String, Long>();
+			for (List<List<String>> result : results) {
+				for (List<String> row : result) {
+					cars.put(row.get(0), row);
+					Long count = counts.get(row.get(0));
+					counts.put(row.get(0), (count == null ? 0 : count) + Long.parseLong(row.get(3)));
+				}
+			}
+			List<List<String>> answer = new ArrayList<List<String>>();
+			for (Map.Entry<String, Long> e : topK(counts, k)) {
+				List<String> car = cars.get(e.getKey());
+				answer.add(Arrays.asList(car.get(1), car.get(2), String.valueOf(e.getValue())));
+			}
+			return answer;
+		}
+
+		/**
+		 * Merges per-shop (fname, lname, phone, total) rows. A customer known to
+		 * several shops, matched on name and phone, gets the summed total.
+		 *
+		 * @return every customer as (fname, lname, total), highest total first
+		 */
+		static List<List<String>> totalBills(List<List<List<String>>> results) {
+			Map<List<String>, Long> totals = sumByCustomer(results);
+			List<List<String>> answer = new ArrayList<List<String>>();
+			for (Map.Entry<List<String>, Long> e : topK(totals, totals.size()))
+				answer.add(Arrays.asList(e.getKey().get(0), e.getKey().get(1), String.valueOf(e.getValue())));
+			return answer;
+		}
+
+		/**
+		 * Merges per-shop (fname, lname, phone, cars) rows. A customer known to
+		 * several shops, matched on name and phone, is held to the threshold with
+		 * the summed count, so cars spread over shops are not missed.
+		 *
+		 * @return customers with more than min cars as (fname, lname, cars), most first
+		 */
+		static List<List<String>> customersWithMoreCars(List<List<List<String>>> results, int min) {
+			Map<List<String>, Long> cars = sumByCustomer(results);
+			cars.values().removeIf(n -> n <= min);
+			List<List<String>> answer = new ArrayList<List<String>>();
+			for (Map.Entry<List<String>, Long> e : topK(cars, cars.size()))
+				answer.add(Arrays.asList(e.getKey().get(0), e.getKey().get(1), String.valueOf(e.getValue())));
+			return answer;
+		}
+
+		// sums the fourth column of (fname, lname, phone, n) rows per customer
+		private static Map<List<String>, Long> sumByCustomer(List<List<List<String>>> results) {
+			Map<List<String>, Long> sums = new HashMap<List<String>, Long>();
+			for (List<List<String>> result : results) {
+				for (List<String> row : result) {
+					List<String> customer = Arrays.asList(row.get(0), row.get(1), row.get(2));
+					Long sum = sums.get(customer);
+					sums.put(customer, (sum == null ? 0 : sum) + Long.parseLong(row.get(3)));
+				}
+			}
+			return sums;
+		}
+
+		/**
+		 * Merges per-shop (vin, make, model, year, odometer, date) rows. A car
+		 * serviced at several shops keeps the reading with the latest date, and
+		 * only then is held to the mileage.
+		 *
+		 * @return cars whose latest reading is above mileage, by year and vin
+		 */
+		static List<List<String>> latestReadings(List<List<List<String>>> results, int mileage) {
+			Map<String, List<String>> latest = new HashMap<String, List<String>>();
+			for (List<List<String>> result : results) {
+				for (List<String> row : result) {
+					List<String> seen = latest.get(row.get(0));
+					// ISO dates order as text; a same-day tie keeps the higher reading
+					int c = seen == null ? 1 : row.get(5).compareTo(seen.get(5));
+					if (c > 0 || c == 0 && Long.parseLong(row.get(4)) > Long.parseLong(seen.get(4)))
+						latest.put(row.get(0), row);
+				}
+			}
+			List<List<String>> answer = new ArrayList<List<String>>();
+			for (List<String> row : latest.values())
+				if (Long.parseLong(row.get(4)) > mileage)
+					answer.add(row);
+			answer.sort((a, b) -> {
+				int c = Integer.compare(Integer.parseInt(a.get(3).trim()), Integer.parseInt(b.get(3).trim()));
+				return c != 0 ? c : a.get(0).compareTo(b.get(0));
+			});
+			return answer;
+		}
+
+		/**
+		 * Picks the k largest values with a size-k min-heap, O(n log k). Equal
+		 * values are ordered by key so the result does not depend on map order.
+		 *
+		 * @return the entries in descending order of value
+		 */
+		static <K> List<Map.Entry<K, Long>> topK(Map<K, Long> values, int k) {
+			if (k <= 0)
+				return new ArrayList<Map.Entry<K, Long>>();
+			// orders the entry that should be dropped first to the front
+			Comparator<Map.Entry<K, Long>> worstFirst = (a, b) -> {
+				int c = Long.compare(a.getValue(), b.getValue());
+				return c != 0 ? c : String.valueOf(b.getKey()).compareTo(String.valueOf(a.getKey()));
+			};
+			PriorityQueue<Map.Entry<K, Long>> heap = new PriorityQueue<Map.Entry<K, Long>>(Math.max(1, Math.min(k, values.size())), worstFirst);
+			for (Map.Entry<K, Long> e : values.entrySet()) {
+				if (heap.size() < k) {
+					heap.add(e);
+				} else if (worstFirst.compare(e, heap.peek()) > 0) {
+					heap.poll();
+					heap.add(e);
+				}
+			}
+			List<Map.Entry<K, Long>> result = new ArrayList<Map.Entry<K, Long>>(heap);
+			result.sort(worstFirst.reversed());
+			return result;
+		}
+
+		void cleanup() {
+			pool.shutdown();
+			for (MechanicShop shop : shops)
+				shop.cleanup();
+		}
+	}
+
 	/**
 	 * The main execution method
 	 * 
@@ -221,11 +1852,13 @@ public class MechanicShop {
 	public static void main(String[] args) {
 		if (args.length != 3) {
 			System.err.println("Usage: " + "java [-classpath <classpath>] " + MechanicShop.class.getName()
-					+ " <dbname> <port> <user>");
+					+ " <dbname>[,<dbname>[:<port>]...] <port> <user>");
 			return;
 		} // end if
 
 		MechanicShop esql = null;
+		// set when more than one shop database is given
+		ShopChain chain = null;
 
 		try {
 			System.out.println("(1)");
@@ -244,7 +1877,20 @@ public class MechanicShop {
 			String dbport = args[1];
 			String user = args[2];
 
-			esql = new MechanicShop(dbname, dbport, user, "");
+			if (dbname.contains(",")) {
+				chain = new ShopChain(dbname.split(","), dbport, user);
+				esql = chain.shops.get(0);
+				chain.startSession();
+			} else {
+				esql = new MechanicShop(dbname, dbport, user, "");
+				if (!esql.isOffline()) {
+					try {
+						esql.startSession();
+					} catch (Exception e) {
+						System.err.println(e.getMessage());
+					}
+				}
+			}
 
 			boolean keepon = true;
 			while (keepon) {
@@ -257,46 +1903,62 @@ public class MechanicShop {
 				System.out.println("5. CloseServiceRequest");
 				System.out.println("6. ListCustomersWithBillLessThan100");
 				System.out.println("7. ListCustomersWithMoreThan20Cars");
-				System.out.println("8. ListCarsBefore1995With50000Milles");
+				System.out.println("8. ListCarsBeforeYearWithMileage");
 				System.out.println("9. ListKCarsWithTheMostServices");
 				System.out.println("10. ListCustomersInDescendingOrderOfTheirTotalBill");
-				System.out.println("11. < EXIT");
+				System.out.println("11. ListOpenServiceRequests");
+				System.out.println("12. DispatchOpenServiceRequests");
+				System.out.println("13. ReconnectAndReplayJournal");
+				System.out.println("14. ArchiveClosedServiceHistory");
+				System.out.println("15. < EXIT");
 
 				/*
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
 				 */
 				switch (readChoice()) {
 				case 1:
-					AddCustomer(esql);
+					AddCustomer(chain == null ? esql : chain.select());
 					break;
 				case 2:
-					AddMechanic(esql);
+					AddMechanic(chain == null ? esql : chain.select());
 					break;
 				case 3:
-					AddCar(esql);
+					AddCar(chain == null ? esql : chain.select());
 					break;
 				case 4:
-					InsertServiceRequest(esql);
+					InsertServiceRequest(chain == null ? esql : chain.select());
 					break;
 				case 5:
-					CloseServiceRequest(esql);
+					CloseServiceRequest(chain == null ? esql : chain.select());
 					break;
 				case 6:
-					ListCustomersWithBillLessThan100(esql);
+					if (chain == null) ListCustomersWithBillLessThan100(esql); else chain.ListCustomersWithBillLessThan100();
 					break;
 				case 7:
-					ListCustomersWithMoreThan20Cars(esql);
+					if (chain == null) ListCustomersWithMoreThan20Cars(esql); else chain.ListCustomersWithMoreThan20Cars();
 					break;
 				case 8:
-					ListCarsBefore1995With50000Milles(esql);
+					if (chain == null) ListCarsBeforeYearWithMileage(esql); else chain.ListCarsBeforeYearWithMileage();
 					break;
 				case 9:
-					ListKCarsWithTheMostServices(esql);
+					if (chain == null) ListKCarsWithTheMostServices(esql); else chain.ListKCarsWithTheMostServices();
 					break;
 				case 10:
-					ListCustomersInDescendingOrderOfTheirTotalBill(esql);
+					if (chain == null) ListCustomersInDescendingOrderOfTheirTotalBill(esql); else chain.ListCustomersInDescendingOrderOfTheirTotalBill();
 					break;
 				case 11:
+					ListOpenServiceRequests(chain == null ? esql : chain.select());
+					break;
+				case 12:
+					DispatchOpenServiceRequests(chain == null ? esql : chain.select());
+					break;
+				case 13:
+					ReconnectAndReplayJournal(chain == null ? esql : chain.select());
+					break;
+				case 14:
+					ArchiveClosedServiceHistory(chain == null ? esql : chain.select());
+					break;
+				case 15:
 					keepon = false;
 					break;
 				}
@@ -305,7 +1967,11 @@ public class MechanicShop {
 			System.err.println(e.getMessage());
 		} finally {
 			try {
-				if (esql != null) {
+				if (chain != null) {
+					System.out.print("Disconnecting from databases...");
+					chain.cleanup();
+					System.out.println("Done\n\nBye !");
+				} else if (esql != null) {
 					System.out.print("Disconnecting from database...");
 					esql.cleanup();
 					System.out.println("Done\n\nBye !");
@@ -333,6 +1999,10 @@ public class MechanicShop {
 	}// end readChoice
 
 	public static void AddCustomer(MechanicShop esql) {// 1
+		if (esql.isOffline()) {
+			JournalCustomer(esql);
+			return;
+		}
 		int id;
 		String val;
 		int customerID = 0;
@@ -402,6 +2072,7 @@ public class MechanicShop {
 			
 			query += customerID + ", '"+ firstname + "', '" + lastname + "', '" + experience + "')";
 			esql.executeUpdate(query);
+			esql._backlog.addMechanic(customerID, Integer.parseInt(experience.trim()));
 
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
@@ -409,6 +2080,10 @@ public class MechanicShop {
 	}
 
 	public static void AddCar(MechanicShop esql) {// 3
+		if (esql.isOffline()) {
+			JournalCar(esql);
+			return;
+		}
 		int id = 0;
 		int customerID = 0;
 		String val;
@@ -449,6 +2124,10 @@ public class MechanicShop {
 	}
 
 	public static void InsertServiceRequest(MechanicShop esql) {// 4
+		if (esql.isOffline()) {
+			JournalServiceRequest(esql);
+			return;
+		}
 			String query = "INSERT INTO Service_Request (rid,customer_id,car_vin,date,odometer,comment) VALUES (";
 			Integer rid = 0;
 			Integer customer_id = 0;
@@ -470,9 +2149,8 @@ public class MechanicShop {
 			lastname = in.readLine();
 			//error checking lastname for less than 32 and empty
 			if (lastname.isEmpty() ) {if(lastname.length() > maxVal){while (lastname.isEmpty() || (lastname.length() > maxVal)) {System.out.println("Error: Invalid Input!");System.out.print("\nSearch customer by entering last name: ");lastname = in.readLine();}}}
-			//query to get current rid - finding the highest rid + 1
-			id_array = esql.executeQueryAndReturnResult("SELECT rid FROM Service_Request ORDER BY rid DESC LIMIT 1;");
-			rid = Integer.parseInt(id_array.get(0).get(0)); rid += 1;
+			//the next rid comes from its sequence, which survives archiving
+			rid = esql.nextKey(RID_SEQUENCE);
 			//query to search lastname
 			String query_lname = "SELECT * FROM Customer WHERE lname = '" + lastname + "';";
 			a = esql.executeQueryAndReturnResult(query_lname);
@@ -626,8 +2304,12 @@ public class MechanicShop {
 				comment = in.readLine();
 			};
 			//last insert query in order to submit a service request
-			query = "INSERT INTO Service_Request (rid, customer_id, car_vin, date, odometer, complain) VALUES (" + rid + "," + a.get(current).get(0) + ",'" + vin + "','" + date + "'," + odo + ",'" + comment + "');";
-			esql.executeUpdate(query);
+			query = "INSERT INTO Service_Request (rid, customer_id, car_vin, date, odometer, complain) VALUES (" + rid + "," + a.get(current).get(0) + ",'" + vin + "','" + date + "'," + odo + ",'" + comment + "') RETURNING date";
+			//the backlog keeps the date as the database stored it, like loadBacklog does
+			String stored = esql.executeQueryAndReturnResult(query).get(0).get(0);
+			//register the new request in the open backlog and hand it to a mechanic
+			int mid = esql._backlog.open(rid, stored);
+			if (mid >= 0) { System.out.println("Assigned to mechanic " + mid); }
 			//success
 			System.out.println("Finished Insertion of Request!\n\n\n We'll call you back shortly to schedule your appointment!\n\n\n\n\n\n\n\n\n\n\n\n\n\n\n");
 		} 
@@ -661,6 +2343,10 @@ public class MechanicShop {
 	}
 
 	public static void CloseServiceRequest(MechanicShop esql) throws Exception {// 5
+		if (esql.isOffline()) {
+			JournalCloseRequest(esql);
+			return;
+		}
 		int id = -1, rid = -1,wid = -1, bill = -1, n = 0;
 		String query;
 		List<List<String>> output;
@@ -679,6 +2365,11 @@ public class MechanicShop {
 			System.out.println("Enter Service Request ID: ");
 			val = in.readLine();
 			rid = Integer.parseInt(val);//update service request id
+			//only requests without a Closed_Request can be closed
+			if (!esql.isRequestOpen(rid)) {
+				System.out.println("Service request " + rid + " is not open!");
+				return;
+			}
 				
 			//prompt mechanic to make comments about the service
 			System.out.println("Enter Comments");
@@ -688,16 +2379,19 @@ public class MechanicShop {
 			val = in.readLine();
 			bill = Integer.parseInt(val);
 			//parse string to integer
-			query = String.format("SELECT wid FROM Closed_Request ORDER BY wid DESC LIMIT 1;");
-			output = esql.executeQueryAndReturnResult(query);
-			//find the maximum wid
-			n = Integer.parseInt(output.get(0).get(0));
-			wid = n + 1;
+			//the next wid comes from its sequence, which survives archiving
+			wid = esql.nextKey(WID_SEQUENCE);
 			date = date + " " + timeStamp;
 			//import date of the timestamp piece
-			//wid+1 to find the next value
-			query = String.format("INSERT INTO Closed_Request(\"wid\",\"rid\",\"mid\",\"date\",\"comment\",\"bill\") VALUES(%d,%d,%d,'%s','%s',%d);", wid, rid, id, date, comment, bill);
-			esql.executeUpdate(query); ///update the closed request
+			//the insert is skipped when another desk closed the request while we were prompting
+			query = String.format("INSERT INTO Closed_Request(\"wid\",\"rid\",\"mid\",\"date\",\"comment\",\"bill\") SELECT %d,%d,%d,CAST('%s' AS DATE),'%s',%d "
+					+ "WHERE NOT EXISTS (SELECT 1 FROM Closed_Request WHERE rid = %d);", wid, rid, id, date, comment, bill, rid);
+			if (esql.executeUpdate(query) == 0) { ///update the closed request
+				esql._backlog.close(rid, -1);
+				System.out.println("Service request " + rid + " was closed by another desk meanwhile!");
+				return;
+			}
+			esql._backlog.close(rid, id);
 			//success
 			System.out.println("\n\n\n\n Thank You For Your Business. We have successfully closed your request for repairs to your vehicle. Come back again!\n\n\n\n\n\n\n\n\n\n\n\n\n\n\n");
 		}
@@ -708,9 +2402,198 @@ public class MechanicShop {
 		}
 	}
 
+	// offline variants of the intake operations: no lookups, the fields go to the journal
+
+	public static void JournalCustomer(MechanicShop esql) {// 1 offline
+		try {
+			System.out.print("\tEnter firstname: ");
+			String firstname = readRequired(32);
+			System.out.print("\tEnter lastname: ");
+			String lastname = readRequired(32);
+			System.out.print("\tEnter Phone Number: ");
+			String phone = readRequired(13);
+			System.out.print("\tEnter Address: ");
+			String address = readRequired(32);
+			long seq = esql.journal().append(IntakeJournal.CUSTOMER, firstname, lastname, phone, address);
+			esql.journal().sync();
+			System.out.println("Saved offline. Refer to this customer as J" + seq + " until the database is back.");
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void JournalCar(MechanicShop esql) {// 3 offline
+		try {
+			System.out.print("\tEnter vin number: ");
+			String vin = readRequired(18);
+			System.out.print("\tEnter make: ");
+			String make = readRequired(32);
+			System.out.print("\tEnter model: ");
+			String model = readRequired(32);
+			System.out.print("\tEnter year: ");
+			String year = in.readLine().trim();
+			while (year.length() != 4) { System.out.print("\n Invalid Year Entry, please re-enter: "); year = in.readLine().trim();}
+			Integer.parseInt(year);
+			System.out.print("\tEnter owner customer id or J# (blank for none): ");
+			String owner = in.readLine().trim();
+			long seq = esql.journal().append(IntakeJournal.CAR, vin, make, model, year, owner);
+			esql.journal().sync();
+			System.out.println("Saved offline as J" + seq + ".");
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void JournalServiceRequest(MechanicShop esql) {// 4 offline
+		try {
+			String date = new SimpleDateFormat("MM/dd/yyyy HH:mm").format(Calendar.getInstance().getTime());
+			System.out.print("\tEnter customer id or J#: ");
+			String customer = readRequired(12);
+			System.out.print("\tEnter vin number: ");
+			String vin = readRequired(18);
+			System.out.print("\tEnter current milage of your car: ");
+			int odo = Integer.parseInt(in.readLine().trim());
+			while (odo <= 0) { System.out.print("\nEnter odometer reading: "); odo = Integer.parseInt(in.readLine().trim());}
+			System.out.print("\tEnter customer comment: ");
+			String comment = readRequired(Integer.MAX_VALUE);
+			long seq = esql.journal().append(IntakeJournal.REQUEST, customer, vin, date, String.valueOf(odo), comment);
+			esql.journal().sync();
+			System.out.println("Saved offline. Refer to this request as J" + seq + " until the database is back.");
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void JournalCloseRequest(MechanicShop esql) {// 5 offline
+		try {
+			String date = new SimpleDateFormat("MM/dd/yyyy HH:mm").format(Calendar.getInstance().getTime());
+			System.out.print("\tEnter Mechanic ID: ");
+			int mid = Integer.parseInt(in.readLine().trim());
+			System.out.print("\tEnter Service Request ID or J#: ");
+			String rid = readRequired(12);
+			System.out.print("\tEnter Comments: ");
+			String comment = in.readLine();
+			System.out.print("\tEnter Amount Bill of Service: ");
+			int bill = Integer.parseInt(in.readLine().trim());
+			long seq = esql.journal().append(IntakeJournal.CLOSE, String.valueOf(mid), rid, date, comment, String.valueOf(bill));
+			esql.journal().sync();
+			System.out.println("Saved offline as J" + seq + ".");
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	// reads a non-empty line, shortening it to at most max characters
+	private static String readRequired(int max) throws IOException {
+		String val = in.readLine();
+		while (val != null && val.trim().isEmpty()) { val = in.readLine();}
+		if (val == null) { throw new IOException("End of input");}
+		val = val.trim();
+		if (val.length() > max) { System.out.print("\n Too many characters! Will be shortened\n"); val = val.substring(0, max);}
+		return val;
+	}
+
+	public static void ReconnectAndReplayJournal(MechanicShop esql) {// 13
+		try {
+			if (esql.isOffline() && !esql.reconnect()) {
+				System.out.println("Database is still unavailable.");
+				return;
+			}
+			esql.startSession();
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void ArchiveClosedServiceHistory(MechanicShop esql) {// 14
+		try {
+			System.out.print("\tKeep how many recent months of closed requests in the live tables? ");
+			int months = Integer.parseInt(in.readLine().trim());
+			while (months < 0) { System.out.print("\n Invalid number, please re-enter: "); months = Integer.parseInt(in.readLine().trim());}
+			System.out.println("Archived " + esql.archiveHistory(months) + " closed requests in total");
+		}
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void ListOpenServiceRequests(MechanicShop esql) {// 11
+		try {
+			esql.loadBacklog();
+			System.out.println(esql._backlog.size() + " open service requests");
+			System.out.println("Select number of requests you wanna output");
+			int k = Integer.parseInt(in.readLine());
+			List<List<String>> answer = esql._backlog.oldest(k);
+			for (int i = 0; i < answer.size(); ++i) {
+				System.out.println(answer.get(i));
+			}
+		}
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void DispatchOpenServiceRequests(MechanicShop esql) {// 12
+		try {
+			esql.loadBacklog();
+			int n = esql._backlog.dispatch();
+			System.out.println("Assigned " + n + " open service requests");
+		}
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	// report queries shared by the single-shop reports and ShopChain
+
+	static final String MORE_THAN_20_CARS_QUERY = "SELECT C.fname, O.customer_id, COUNT(DISTINCT O.car_vin) as vin_count FROM Owns O, Customer C WHERE O.customer_id = C.id GROUP BY O.customer_id, C.fname HAVING COUNT(DISTINCT O.car_vin) > 20";
+
+	static String billLessThan100Query(boolean archived) {
+		String query = "SELECT fname, lname, Closed_Request.date, comment, bill FROM Closed_Request, Customer C, Service_Request S WHERE S.customer_id = C.id AND Closed_Request.rid = S.rid AND bill < 100";
+		if (archived) {
+			query += " UNION ALL SELECT C.fname, C.lname, A.closed_date, A.comment, A.bill FROM Archived_Service A, Customer C WHERE A.customer_id = C.id AND A.bill < 100";
+		}
+		return query;
+	}
+
+	//one row per car: the latest odometer reading comes from a single probe of service_request_car_date_idx,
+	//and of archived_service_car_date_idx when the loaded archive is included
+	static String fleetAgingQuery(int year, int mileage, boolean archived) {
+		String latest = "SELECT S.odometer, S.date, S.rid FROM Service_Request S WHERE S.car_vin = C.vin ORDER BY S.date DESC, S.rid DESC LIMIT 1";
+		if (archived) {
+			latest = "SELECT V.odometer, V.date, V.rid FROM ((" + latest + ") UNION ALL (SELECT A.odometer, A.date, A.rid FROM Archived_Service A "
+					+ "WHERE A.car_vin = C.vin ORDER BY A.date DESC, A.rid DESC LIMIT 1)) V ORDER BY V.date DESC, V.rid DESC LIMIT 1";
+		}
+		return String.format("SELECT C.vin, C.make, C.model, C.year, L.odometer, L.date FROM Car C CROSS JOIN LATERAL (" + latest + ") L "
+				+ "WHERE C.year < %d AND L.odometer > %d ORDER BY C.year, C.vin", year, mileage);
+	}
+
+	// every service request as (rid, car_vin), aliased V, optionally with the loaded archive
+	static String serviceHistory(boolean archived) {
+		return "(SELECT S.rid, S.car_vin FROM Service_Request S"
+				+ (archived ? " UNION ALL SELECT DISTINCT A.rid, A.car_vin FROM Archived_Service A" : "") + ") V";
+	}
+
+	// every closed bill as (customer_id, bill), aliased H, optionally with the loaded archive
+	static String billHistory(boolean archived) {
+		return "(SELECT S.customer_id, R.bill FROM Closed_Request R, Service_Request S WHERE R.rid = S.rid"
+				+ (archived ? " UNION ALL SELECT A.customer_id, A.bill FROM Archived_Service A" : "") + ") H";
+	}
+
+	// reads an integer, empty input keeps the default
+	static int readIntOrDefault(String prompt, int def) throws IOException {
+		System.out.print(prompt + " (default " + def + "): ");
+		String val = in.readLine().trim();
+		return val.isEmpty() ? def : Integer.parseInt(val);
+	}
+
 	public static void ListCustomersWithBillLessThan100(MechanicShop esql) {// 6
 		try {
-			String query = "SELECT fname, lname, Closed_Request.date, comment, bill FROM Closed_Request, Customer C, Service_Request S WHERE S.customer_id = C.id AND Closed_Request.rid = S.rid AND bill < 100";
+			String from = readArchivePeriod();
+			if (from != null) {
+				System.out.println("Loaded " + esql.loadArchive(from) + " archived rows");
+			}
+			String query = billLessThan100Query(from != null);
 			List<List<String>> answer = esql.executeQueryAndReturnResult(query);
 			for (int i = 0; i < answer.size(); ++i) {
 				System.out.println(answer.get(i));
@@ -723,8 +2606,7 @@ public class MechanicShop {
 
 	public static void ListCustomersWithMoreThan20Cars(MechanicShop esql) {// 7
 		try {
-			String query = "SELECT C.fname, O.customer_id, COUNT(DISTINCT O.car_vin) as vin_count FROM Owns O, Customer C WHERE O.customer_id = C.id GROUP BY O.customer_id, C.fname HAVING COUNT(DISTINCT O.car_vin) > 20";
-			List<List<String>> answer = esql.executeQueryAndReturnResult(query);
+			List<List<String>> answer = esql.executeQueryAndReturnResult(MORE_THAN_20_CARS_QUERY);
 			for (int i = 0; i < answer.size(); ++i) {
 				System.out.println(answer.get(i));
 			}
@@ -734,9 +2616,16 @@ public class MechanicShop {
 		}
 	}
 
-	public static void ListCarsBefore1995With50000Milles(MechanicShop esql) {// 8
+	public static void ListCarsBeforeYearWithMileage(MechanicShop esql) {// 8
 		try {
-			String query = "SELECT C.make, C.model, C.year, S.odometer FROM Service_Request S, Car C WHERE C.vin = S.car_vin AND C.year < 1995 and S.odometer > 50000";
+			//empty input keeps the original 1995 / 50000 thresholds
+			int year = readIntOrDefault("\tEnter model year cutoff", 1995);
+			int mileage = readIntOrDefault("\tEnter minimum mileage", 50000);
+			String from = readArchivePeriod();
+			if (from != null) {
+				System.out.println("Loaded " + esql.loadArchive(from) + " archived rows");
+			}
+			String query = fleetAgingQuery(year, mileage, from != null);
 			List<List<String>> answer = esql.executeQueryAndReturnResult(query);
 			for (int i = 0; i < answer.size(); ++i) {
 				System.out.println(answer.get(i));
@@ -755,6 +2644,12 @@ public class MechanicShop {
 			k = Integer.parseInt(in.readLine());
 
 			String query = "SELECT C.make, C.model, COUNT(*) FROM Service_Request S, Car C WHERE C.vin = S.car_vin GROUP BY S.car_vin, C.make, C.model ORDER BY COUNT(*) DESC";
+			String from = readArchivePeriod();
+			if (from != null) {
+				System.out.println("Loaded " + esql.loadArchive(from) + " archived rows");
+				query = "SELECT C.make, C.model, COUNT(*) FROM " + serviceHistory(true)
+						+ ", Car C WHERE C.vin = V.car_vin GROUP BY V.car_vin, C.make, C.model ORDER BY COUNT(*) DESC";
+			}
 			List<List<String>> answer = esql.executeQueryAndReturnResult(query);
 			for (int i = 0; i < k; ++i) {
 				System.out.println(answer.get(i));
@@ -770,6 +2665,12 @@ public class MechanicShop {
 		//
 		try {
 			String query = "SELECT C.fname, C.lname, sum(R.bill) FROM Closed_Request R, Customer C, Service_Request S WHERE C.id = S.customer_id AND R.rid = S.rid GROUP BY S.customer_id, C.fname, C.lname ORDER BY sum(R.bill) DESC";
+			String from = readArchivePeriod();
+			if (from != null) {
+				System.out.println("Loaded " + esql.loadArchive(from) + " archived rows");
+				query = "SELECT C.fname, C.lname, sum(H.bill) FROM Customer C, " + billHistory(true)
+						+ " WHERE C.id = H.customer_id GROUP BY H.customer_id, C.fname, C.lname ORDER BY sum(H.bill) DESC";
+			}
 			List<List<String>> answer = esql.executeQueryAndReturnResult(query);
 			for (int i = 0; i < answer.size(); ++i) {
 				System.out.println(answer.get(i));
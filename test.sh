@@ -0,0 +1,6 @@
+#! /bin/bash
+rm -rf test/bin
+javac -cp ".:lib/postgresql-42.1.4.jar" src/MechanicShop.java test/ShopChainTest.java test/ResultTableTest.java test/IntakeJournalTest.java -d test/bin/
+java -cp lib/*:test/bin/ ShopChainTest
+java -cp lib/*:test/bin/ ResultTableTest
+java -cp lib/*:test/bin/ IntakeJournalTest
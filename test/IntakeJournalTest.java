@@ -0,0 +1,149 @@
+/*
+ * Append, recovery and throughput checks for the offline intake journal.
+ * Needs no database:
+ *
+ * 	source ./test.sh
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+public class IntakeJournalTest {
+	private static final int RECORDS = 100000;
+	private static int failures = 0;
+	private static int skipped = 0;
+
+	private static void check(boolean ok, String what) {
+		System.out.println((ok ? "ok   " : "FAIL ") + what);
+		if (!ok)
+			++failures;
+	}
+
+	// opens the journal, counting the damaged stretches it reports on stderr
+	private static MechanicShop.IntakeJournal open(File file) throws IOException {
+		PrintStream err = System.err;
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(buffer, true));
+		try {
+			return MechanicShop.IntakeJournal.open(file);
+		} finally {
+			System.setErr(err);
+			skipped = buffer.toString().split("skipped damaged bytes", -1).length - 1;
+		}
+	}
+
+	private static void flip(File file, long position) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(position);
+			int b = raf.read();
+			raf.seek(position);
+			raf.write(b ^ 0xff);
+		} finally {
+			raf.close();
+		}
+	}
+
+	// five requests J1..J5 with one field naming the record
+	private static MechanicShop.IntakeJournal fill(File file) throws IOException {
+		MechanicShop.IntakeJournal journal = open(file);
+		for (int i = 1; i <= 5; ++i)
+			journal.append(MechanicShop.IntakeJournal.REQUEST, "request " + i, null);
+		journal.sync();
+		return journal;
+	}
+
+	public static void main(String[] args) throws IOException {
+		File dir = Files.createTempDirectory("journal").toFile();
+		try {
+			run(dir);
+		} finally {
+			for (File f : dir.listFiles())
+				f.delete();
+			dir.delete();
+		}
+		if (failures > 0) {
+			System.out.println(failures + " check(s) failed");
+			System.exit(1);
+		}
+		System.out.println("all checks passed");
+	}
+
+	private static void run(File dir) throws IOException {
+		// append and reopen
+		File file = new File(dir, "append.journal");
+		MechanicShop.IntakeJournal journal = fill(file);
+		journal.setAssigned(2, 42);
+		journal.close();
+		journal = open(file);
+		check(journal.size() == 5 && journal.damaged() == 0, "reopened journal keeps all 5 records");
+		check("request 3".equals(journal.read(3).fields[0]) && journal.read(3).fields[1] == null, "fields read back, null stays null");
+		check(journal.assigned(2) == 42, "assigned key survives reopen");
+		journal.close();
+
+		// the last record damaged: its number stays taken
+		file = new File(dir, "last.journal");
+		journal = fill(file);
+		int offset = journal.read(5).offset;
+		journal.close();
+		flip(file, offset + 16);
+		journal = open(file);
+		check(journal.size() == 5 && journal.read(5) == null && journal.damaged() == 1, "damaged last record leaves a hole at J5");
+		check(skipped == 1, "damaged last record is quarantined as one stretch (" + skipped + ")");
+		check(journal.append(MechanicShop.IntakeJournal.REQUEST, "request 6", null) == 6, "next append after a damaged J5 is J6");
+		journal.close();
+		journal = open(file);
+		check(journal.size() == 6 && "request 6".equals(journal.read(6).fields[0]), "J6 survives the next reopen");
+		journal.close();
+
+		// a damaged record in the middle: the records behind it are kept
+		file = new File(dir, "middle.journal");
+		journal = fill(file);
+		offset = journal.read(3).offset;
+		journal.close();
+		flip(file, offset + 16);
+		journal = open(file);
+		check(journal.read(3) == null && "request 4".equals(journal.read(4).fields[0]) && journal.read(5) != null,
+				"records behind a damaged J3 are kept");
+		check(journal.damaged() == 1 && skipped == 1, "damaged J3 counts one lost record in one stretch");
+		check(journal.damagedFile().length() > 0, "damaged bytes are copied to " + journal.damagedFile().getName());
+		journal.close();
+		journal = open(file);
+		check(journal.damaged() == 1 && skipped == 0, "quarantined bytes are not copied again on the next open");
+		journal.close();
+
+		// a torn append past the end mark is cut off quietly
+		file = new File(dir, "torn.journal");
+		journal = fill(file);
+		int end = journal.read(5).offset + 12 + 8 + 1 + 2 + 4 + "request 5".length() + 4;
+		journal.close();
+		flip(file, end);
+		flip(file, end + 20);
+		journal = open(file);
+		check(journal.size() == 5 && journal.damaged() == 0 && !journal.damagedFile().exists(), "torn append is cut off, not quarantined");
+		journal.close();
+
+		// throughput
+		file = new File(dir, "throughput.journal");
+		journal = open(file);
+		long start = System.nanoTime();
+		for (int i = 0; i < RECORDS; ++i)
+			journal.append(MechanicShop.IntakeJournal.REQUEST, "J" + (i / 2 + 1), "1HGCM82633A00435" + (i % 10), "08/14/2026 10:2" + (i % 10), "12000", "brakes squeal");
+		long appended = System.nanoTime() - start;
+		start = System.nanoTime();
+		journal.sync();
+		long synced = System.nanoTime() - start;
+		journal.close();
+		start = System.nanoTime();
+		journal = open(file);
+		long reopened = System.nanoTime() - start;
+		System.out.println(String.format("     %d appends %d ms (%d/s), sync %d ms, reopen %d ms, %d KB", RECORDS, appended / 1000000,
+				RECORDS * 1000000000L / Math.max(1, appended), synced / 1000000, reopened / 1000000, file.length() / 1024));
+		check(journal.size() == RECORDS && journal.damaged() == 0, "reopen recovers all " + RECORDS + " appended records");
+		journal.close();
+	}
+}
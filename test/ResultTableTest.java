@@ -0,0 +1,108 @@
+/*
+ * Heap and GC measurement of ResultTable against the List<List<String>> the
+ * client used to build, for a bill-report shaped result. Needs no database:
+ *
+ * 	source ./test.sh
+ */
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class ResultTableTest {
+	private static final int ROWS = 200000;
+	private static int failures = 0;
+
+	private static void check(boolean ok, String what) {
+		System.out.println((ok ? "ok   " : "FAIL ") + what);
+		if (!ok)
+			++failures;
+	}
+
+	// (fname, lname, date, comment, bill) rows, each cell a fresh String as the driver returns it
+	private static String[][] rows() {
+		Random random = new Random(166);
+		String[][] rows = new String[ROWS][];
+		for (int i = 0; i < ROWS; ++i)
+			rows[i] = new String[] { "first" + random.nextInt(500), "last" + random.nextInt(2000),
+					String.format("20%02d-%02d-%02d", 18 + random.nextInt(3), 1 + random.nextInt(12), 1 + random.nextInt(28)),
+					"comment " + random.nextInt(1000000), String.valueOf(random.nextInt(500)) };
+		return rows;
+	}
+
+	// the old executeQueryAndReturnResult: one ArrayList and one String per cell
+	private static List<List<String>> strings(String[][] rows) {
+		List<List<String>> result = new ArrayList<List<String>>();
+		for (String[] row : rows) {
+			List<String> record = new ArrayList<String>();
+			for (String cell : row)
+				record.add(new String(cell));
+			result.add(record);
+		}
+		return result;
+	}
+
+	// what readResult does with the same rows
+	private static MechanicShop.ResultTable table(String[][] rows, boolean seal) {
+		MechanicShop.ResultTable result = new MechanicShop.ResultTable(new boolean[] { false, false, false, false, true });
+		for (String[] row : rows) {
+			for (int c = 0; c < 4; ++c)
+				result.addString(c, new String(row[c]));
+			result.addInt(4, Integer.parseInt(row[4]), false);
+			result.endRow();
+		}
+		if (seal)
+			result.seal();
+		return result;
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; ++i)
+			System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static long gcCount() {
+		long n = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			n += Math.max(0, gc.getCollectionCount());
+		return n;
+	}
+
+	private interface Build {
+		List<List<String>> run();
+	}
+
+	// retained heap in KB, and the collections and milliseconds taken while building
+	private static List<List<String>> measure(String name, Build build, long[] retained) {
+		long before = usedHeap(), collections = gcCount(), start = System.nanoTime();
+		List<List<String>> result = build.run();
+		long millis = (System.nanoTime() - start) / 1000000;
+		collections = gcCount() - collections;
+		retained[0] = (usedHeap() - before) / 1024;
+		System.out.println(String.format("     %-18s %8d KB retained %4d GCs %5d ms", name, retained[0], collections, millis));
+		return result;
+	}
+
+	public static void main(String[] args) {
+		final String[][] rows = rows();
+		System.out.println("     " + ROWS + " rows of (fname, lname, date, comment, bill)");
+		long[] plain = new long[1], open = new long[1], sealed = new long[1];
+
+		List<List<String>> expected = measure("List<List<String>>", () -> strings(rows), plain);
+		measure("ResultTable", () -> table(rows, false), open);
+		List<List<String>> result = measure("sealed", () -> table(rows, true), sealed);
+
+		check(result.equals(expected), "sealed table reads back every row");
+		check(sealed[0] * 2 < plain[0], "sealed table retains under half the heap of List<List<String>>");
+		check(result.get(ROWS - 1).get(4).equals(expected.get(ROWS - 1).get(4)), "int column reads back as text");
+
+		if (failures > 0) {
+			System.out.println(failures + " check(s) failed");
+			System.exit(1);
+		}
+		System.out.println("all checks passed");
+	}
+}
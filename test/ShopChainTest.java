@@ -0,0 +1,96 @@
+/*
+ * Checks for the client-side merge of multi-shop reports. Needs no database:
+ *
+ * 	source ./test.sh
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ShopChainTest {
+	private static int failures = 0;
+
+	private static void check(boolean ok, String what) {
+		System.out.println((ok ? "ok   " : "FAIL ") + what);
+		if (!ok)
+			++failures;
+	}
+
+	private static List<String> row(String... values) {
+		return Arrays.asList(values);
+	}
+
+	@SafeVarargs
+	private static List<List<String>> shop(List<String>... rows) {
+		return Arrays.asList(rows);
+	}
+
+	public static void main(String[] args) {
+		// (vin, make, model, count) per shop; VIN2 was serviced at both shops
+		List<List<List<String>>> services = Arrays.asList(
+				shop(row("VIN1", "Ford", "F150", "5"), row("VIN2", "Honda", "Civic", "4"), row("VIN3", "BMW", "M3", "1")),
+				shop(row("VIN2", "Honda", "Civic", "3"), row("VIN4", "Toyota", "Camry", "6")),
+				shop());
+
+		List<List<String>> top = MechanicShop.ShopChain.mostServicedCars(services, 2);
+		check(top.equals(Arrays.asList(row("Honda", "Civic", "7"), row("Toyota", "Camry", "6"))),
+				"top 2 cars sum a VIN across shops: " + top);
+		check(MechanicShop.ShopChain.mostServicedCars(services, 10).size() == 4, "k larger than the cars returns every car");
+		check(MechanicShop.ShopChain.mostServicedCars(services, 0).isEmpty(), "k of 0 returns nothing");
+
+		// (fname, lname, phone, total) per shop; Ann Lee is a customer at both shops
+		List<List<List<String>>> bills = Arrays.asList(
+				shop(row("Ann", "Lee", "5550001111", "120"), row("Bob", "Ray", "5550002222", "300")),
+				shop(row("Ann", "Lee", "5550001111", "250"), row("Ann", "Lee", "5559999999", "10")));
+		List<List<String>> totals = MechanicShop.ShopChain.totalBills(bills);
+		check(totals.equals(Arrays.asList(row("Ann", "Lee", "370"), row("Bob", "Ray", "300"), row("Ann", "Lee", "10"))),
+				"total bills merge on name and phone, highest first: " + totals);
+
+		// (fname, lname, phone, cars) per shop; Ann Lee has 12 cars at each shop, Bob 21 at one
+		List<List<List<String>>> cars = Arrays.asList(
+				shop(row("Ann", "Lee", "5550001111", "12"), row("Bob", "Ray", "5550002222", "21"), row("Cy", "Fox", "5550003333", "20")),
+				shop(row("Ann", "Lee", "5550001111", "12"), row("Ann", "Lee", "5559999999", "3")));
+		List<List<String>> many = MechanicShop.ShopChain.customersWithMoreCars(cars, 20);
+		check(many.equals(Arrays.asList(row("Ann", "Lee", "24"), row("Bob", "Ray", "21"))),
+				"car counts merge on name and phone before the threshold: " + many);
+
+		// (vin, make, model, year, odometer, date) per shop; VIN1's newest reading is at the second shop
+		List<List<List<String>>> readings = Arrays.asList(
+				shop(row("VIN1", "Ford", "F150", "1990", "90000", "2020-01-05"), row("VIN2", "Honda", "Civic", "1985", "70000", "2019-03-01"),
+						row("VIN3", "BMW", "M3", "1990", "60000", "2021-07-01")),
+				shop(row("VIN1", "Ford", "F150", "1990", "40000", "2021-02-01"), row("VIN4", "Audi", "A4", "1985", "55000", "2018-01-01")));
+		List<List<String>> aging = MechanicShop.ShopChain.latestReadings(readings, 50000);
+		check(aging.equals(Arrays.asList(row("VIN2", "Honda", "Civic", "1985", "70000", "2019-03-01"),
+				row("VIN4", "Audi", "A4", "1985", "55000", "2018-01-01"), row("VIN3", "BMW", "M3", "1990", "60000", "2021-07-01"))),
+				"fleet aging keeps each VIN's newest reading, then applies the mileage: " + aging);
+
+		// topK against a full sort, with many ties
+		Map<String, Long> counts = new HashMap<String, Long>();
+		java.util.Random random = new java.util.Random(166);
+		for (int i = 0; i < 20000; ++i)
+			counts.merge("v" + random.nextInt(5000), (long) random.nextInt(10), Long::sum);
+		List<Map.Entry<String, Long>> sorted = new ArrayList<Map.Entry<String, Long>>(counts.entrySet());
+		sorted.sort((a, b) -> a.getValue().equals(b.getValue()) ? a.getKey().compareTo(b.getKey())
+				: Long.compare(b.getValue(), a.getValue()));
+		check(MechanicShop.ShopChain.topK(counts, 25).equals(sorted.subList(0, 25)), "topK matches a full sort, ties by key");
+		check(MechanicShop.ShopChain.topK(counts, counts.size()).equals(sorted), "topK of every entry is a full sort");
+
+		try {
+			new MechanicShop.ShopChain(new String[] { "shop", "shop:5432" }, "5432", "user");
+			check(false, "a shop listed twice is rejected");
+		} catch (IllegalArgumentException e) {
+			check(true, "a shop listed twice is rejected");
+		} catch (Exception e) {
+			check(false, "a shop listed twice is rejected: " + e);
+		}
+
+		if (failures > 0) {
+			System.out.println(failures + " check(s) failed");
+			System.exit(1);
+		}
+		System.out.println("all checks passed");
+	}
+}